@@ -131,6 +131,27 @@
 
   (quick-bench (nippy/thaw nippy-bytes))
 
+  ;;
+  ;; Keywords
+  ;;
+  (def kw-bytes
+    (deed/encode-to-bytes (:many-keywords STRESS-DATA)))
+
+  (quick-bench (deed/decode-from kw-bytes))
+
+  (def kw-bytes-100k
+    (deed/encode-to-bytes
+     (vec (for [i (range 100000)]
+            (keyword "user" (str "k" (mod i 1000)))))))
+
+  (quick-bench (deed/decode-from kw-bytes-100k))
+
+  ;; one short message per decoder, like an RPC call
+  (def kw-bytes-small
+    (deed/encode-to-bytes {:id 1 :status :ok :user {:name "a" :role :admin}}))
+
+  (quick-bench (deed/decode-from kw-bytes-small))
+
 
 
 
@@ -274,3 +295,229 @@
 ;;    Execution time lower quantile : 287.920006 µs ( 2.5%)
 ;;    Execution time upper quantile : 313.039736 µs (97.5%)
 ;;                    Overhead used : 5.359273 ns
+
+;; encode-to-bytes, DataOutputStream vs internal buffer
+;; (mean time, simple loop timing on JDK 17)
+;;
+;;                     DataOutputStream      buffer
+;; STRESS-DATA               440.450 µs  195.342 µs
+;; DATA (1M longs)           146.451 ms   83.057 ms
+;; 100k small maps           134.489 ms   64.500 ms
+
+;; decode-from bytes, DataInputStream vs internal buffer
+;;
+;;                      DataInputStream      buffer
+;; STRESS-DATA               380.557 µs  174.233 µs
+;; DATA (1M longs)           101.894 ms   43.539 ms
+;; 100k small maps           125.301 ms   71.871 ms
+
+;; size in bytes, version 1 vs version 2 (varints)
+;;
+;;                        v1          v2
+;; STRESS-DATA         34177       26013
+;; :many-longs          4376        1476
+;; DATA (1M longs)  10000024     4991781
+;; 100k small maps   6800547     4492304
+
+;; primitive arrays, per-element vs bulk (:array-byte-order :native)
+;;
+;;                        per-element         bulk
+;; encode double[10M]      121.555 ms    98.118 ms
+;; decode double[10M]       62.294 ms    27.681 ms
+;; encode long[1M]           7.265 ms     4.606 ms
+;; decode long[1M]           5.926 ms     2.069 ms
+
+;; strings, String.getBytes vs a char loop into the buffer
+;;
+;;                                getBytes    char loop
+;; encode 100k short ascii         8.320 ms     9.493 ms
+;; encode 100k short kannada      10.193 ms    14.457 ms
+;; encode 10k 1KB ascii           14.950 ms    20.890 ms
+;; encode 10k 1KB mostly-ascii    31.800 ms   109.600 ms
+;; encode 10k 1KB kannada         92.500 ms    67.000 ms
+;;
+;; The loop loses to the intrinsified getBytes on all but
+;; long non-Latin strings, so strings keep getBytes.
+
+;; keywords, kw.toString().substring(1) vs kw.sym.toString()
+;;
+;;                         substring   sym
+;; encode 100k keywords    7.909 ms    6.946 ms
+
+;; keyword references (:keyword-refs? true),
+;; 100k maps with 10 keyword keys each
+;;
+;;                    plain           refs
+;; size            18480671        8980779
+;; encode        209.692 ms     196.625 ms
+;; decode        531.096 ms     343.760 ms
+
+;; decoding keywords and symbols, Keyword.intern vs
+;; a per-decoder cache keyed on UTF-8 bytes
+;;
+;;                              intern        cache
+;; :many-keywords            69.905 µs    44.280 µs
+;; 100k keywords (1000 uniq) 16.352 ms     7.674 ms
+;; 100k symbols (1000 uniq)  15.028 ms     7.172 ms
+;; 100k small maps           85.669 ms    41.781 ms
+
+;; the keyword cache, a fixed 4096-slot table vs one that
+;; starts at 32 slots and doubles as the misses pile up
+;; (medians of three runs)
+;;
+;;                              fixed      growing
+;; one small map per decoder  4.093 µs     0.868 µs
+;; 100k keywords (1000 uniq)  6.004 ms     6.707 ms
+;; 100k keywords (10k uniq)  27.895 ms    27.045 ms
+
+;; string references ({:string-refs 1024})
+;;
+;;                                      plain          refs
+;; 100k strings, 8 distinct size       774607        300085
+;; 100k strings, 8 distinct decode   4.411 ms      2.544 ms
+;; 100k maps, 2 enum columns size     6910301       5969377
+;; 100k maps, 2 enum columns encode 73.768 ms     79.314 ms
+;; 100k maps, 2 enum columns decode 41.161 ms     40.003 ms
+
+;; encode dispatch, IEncode protocol vs ClassValue + switch
+;; for built-in classes
+;;
+;;                                 protocol    ClassValue
+;; 1M mixed [1 "a" :k 1.5 ...]    59.127 ms     48.897 ms
+;;                                71.363 ms     52.725 ms
+;;                                77.065 ms     49.357 ms
+
+;; custom OIDs, -decode multimethod vs Registry array
+;;
+;;                                  MultiFn      Registry
+;; decode 1M deftype (one long)  123.519 ms     44.070 ms
+;; decode 100k defrecords         50.698 ms     50.235 ms
+
+;; decode-from a byte array, input stream vs in place
+;;
+;;                                stream      in place
+;; 1000 x 10KB byte[]           2.605 ms      2.101 ms
+;; same with :byte-slices?     (copies)      0.036 ms
+
+;; scan a 160MB file of long arrays, stream vs {:mmap? true}
+;; (warm page cache)
+;;
+;;               stream         mmap
+;; run 1      75.047 ms    64.930 ms
+;; run 2      66.745 ms    78.898 ms
+
+;; decode maps, transient array map vs direct construction
+;; (array map up to 8 entries, transient hash map after)
+;;
+;;                              transient        direct
+;; 100000 maps of 1           10.436 ms      6.981 ms
+;; 12500 maps of 8             6.328 ms      5.329 ms
+;; 11111 maps of 9            16.892 ms      8.972 ms
+;; 1000 maps of 100           11.964 ms     10.249 ms
+;; 10 maps of 10000           36.866 ms     35.377 ms
+
+;; decode vectors and lists, transient vector vs owning array
+;; (lists used to come back as vectors)
+;;
+;;                              transient         array
+;; 100k vectors of 10          74.126 ms     16.452 ms
+;; 30k vectors of 32           27.635 ms     11.299 ms
+;; 1M vector                   44.256 ms     45.072 ms
+;; 100k lists of 10            69.102 ms     61.706 ms
+
+;; decode sorted collections, before and after the double cons fix
+;; (the map path is unchanged)
+;;
+;;                              before         after
+;; sorted set of 100k        148.954 ms    102.416 ms
+;;                           163.639 ms     85.970 ms
+;; sorted map of 100k         83.134 ms    104.135 ms
+;;                            95.578 ms     92.579 ms
+
+;; decode {:id 1 :rows <3M maps as a lazy seq>} and count rows,
+;; eager vs {:lazy-seqs? true}
+;;
+;;             eager          lazy
+;; -Xmx64m       OOM     526 ms
+;; -Xmx256m      OOM     625 ms
+;; -Xmx1g    2322 ms     758 ms
+
+;; decode {:name "blob" :data <400MB input stream>} and copy
+;; the stream into a file
+;;
+;;             memory    :io-temp-file?    :io-streaming?
+;; -Xmx64m        OOM       245613 ms            614 ms
+;; -Xmx2g     2128 ms       277044 ms            747 ms
+
+;; the same 400MB stream with :io-temp-file?, byte by byte writes and
+;; an unbuffered read-back vs bulk writes and a buffered read-back
+;;
+;;                before        after
+;; -Xmx64m     245613 ms      1121 ms
+;; -Xmx2g      277044 ms      1127 ms
+
+;; 10k records {:id i :body <50 small maps>}, plain vs {:framed? true}
+;;
+;;                              plain        framed
+;; size                      10101776      13221776
+;; encode 10k records      161.231 ms    173.253 ms
+;; encode 100k maps         48.365 ms     54.455 ms
+;; decode 10k records       62.738 ms     55.851 ms
+;; skip 10k records         38.919 ms      0.098 ms
+
+;; 1M maps {:id :status :kind}, get item 777777 of a file
+;;
+;; sequential decode with :mmap?         180.583 ms
+;; nth-from, :index-every 1                5.670 ms
+;; nth-from, :index-every 1024             0.167 ms
+;;
+;; file size: 43991776 plain, 51991802 every 1, 43999618 every 1024
+;; encode: 577 ms plain, 659 ms every 1024
+
+;; 1M maps {:id :status :kind}, reduce over all of them (1 CPU)
+;;
+;; sequential decode with :mmap?          179.7 ms
+;; fold-from, :sync-every 4MB             148.3 ms
+;; fold-from, {:ordered? false}           140.4 ms
+;;
+;; file size: 43991776 plain, 43992062 with sync blocks
+
+;; 20k nested maps into a null stream (1 CPU, so no speedup is
+;; possible; this is the cost of batching and the handoff)
+;;
+;; encode-seq-to                            26.264 ms
+;; encode-seq-parallel-to                   31.304 ms
+;; encode-seq-parallel-to, :batch-size 16   31.670 ms
+
+;; 20k request log entries, encoded one by one every 0.1 ms into a
+;; stream that stalls 3 ms on every write, per-call latency
+;;
+;;                       p50        p99.9          max
+;; sync               2.6 us    3152.2 us    4338.5 us
+;; :async-write?      1.7 us      24.1 us    1140.3 us
+;;
+;; throughput into a null stream: 20.5 ms sync, 22.3 ms async
+
+;; 16 records with a 4MB blob each, into a file
+;;
+;;                            stream       FileChannel
+;; encode byte[] blobs      93.494 ms        86.504 ms
+;; encode direct buffers    99.880 ms        82.095 ms
+;; decode byte[] blobs      38.794 ms        38.641 ms
+;;
+;; (direct buffers could not be encoded before at all)
+
+;; 200k request log maps, 25503381 bytes plain
+;;
+;;                          size        encode        decode
+;; plain                25503381    381.449 ms    192.122 ms
+;; gzip stream           1504153    626.515 ms    217.118 ms
+;; :block-codec :lz4     2921838    324.854 ms    207.901 ms
+;; :block-codec :deflate 1536552    672.527 ms    239.606 ms
+;;
+;; the codecs alone on the same 25MB in memory
+;;
+;; gzip compress            387.843 ms
+;; lz4 compress              98.461 ms
+;; gzip decompress           61.570 ms
+;; lz4 decompress            34.180 ms
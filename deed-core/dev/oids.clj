@@ -109,6 +109,18 @@
     CLJ_BIG_INT             "`clojure.lang.BigInt`"                    nil
     CLJ_RATIO               "`clojure.lang.Ratio`"                     nil
     VECTORZ_AVECTOR         "`mikera.vectorz.AVector`"                 "See the `deed-vectorz` package"
+    CLJ_KEYWORD_DEF         "`clojure.lang.Keyword`"                   "A keyword that gets a back reference id (see `:keyword-refs`)"
+    CLJ_SYMBOL_DEF          "`clojure.lang.Symbol`"                    "A symbol that gets a back reference id (see `:keyword-refs`)"
+    CLJ_IDENT_REF           nil                                        "A back reference to a keyword or a symbol defined earlier"
+    STRING_DEF              "`java.lang.String`"                       "A string that gets a back reference id (see `:string-refs`)"
+    STRING_REF              nil                                        "A back reference to a string defined earlier"
+    CLJ_SORTED_SET_BY       "`clojure.lang.PersistentTreeSet`"         "A sorted set with a custom comparator, which is encoded first"
+    CLJ_SORTED_MAP_BY       "`clojure.lang.PersistentTreeMap`"         "A sorted map with a custom comparator, which is encoded first"
+    FRAME                   nil                                        "A 4-byte size in bytes of the value that follows (see `:framed?`)"
+    FRAME_REFS              nil                                        "Same as FRAME but the value defines back references"
+    INDEX                   nil                                        "An index footer with offsets of top-level values (see `:index-every`)"
+    SYNC                    nil                                        "A sync block with a marker to split a file at (see `:sync-every`)"
+    BLOCKS                  nil                                        "The start of a block-compressed dump (see `:block-codec`)"
     ])
 
 
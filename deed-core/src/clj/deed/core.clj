@@ -3,8 +3,13 @@
    [clojure.java.io :as io])
   (:import
    (java.util.concurrent Future)
-   (java.nio ByteBuffer)
+   (java.nio ByteBuffer
+             ByteOrder)
+   (java.nio.channels AsynchronousFileChannel
+                      ReadableByteChannel
+                      WritableByteChannel)
    (java.io IOException
+            File
             InputStream
             ByteArrayOutputStream
             Writer)
@@ -20,6 +25,8 @@
                  PersistentQueue
                  IRecord
                  MapEntry
+                 MultiFn
+                 IFn
                  ASeq
                  Keyword
                  Symbol
@@ -29,6 +36,7 @@
                  Ref
                  LazySeq)
    (java.util.stream Stream)
+   (java.util.concurrent ExecutorService ForkJoinPool)
    (java.math BigInteger
               BigDecimal)
    (java.net URL
@@ -60,6 +68,8 @@
          EOF
          Options
          IOTool
+         Registry
+         SplitFile
          Unsupported)))
 
 (set! *warn-on-reflection* true)
@@ -459,6 +469,20 @@
               (into-array [oid]))))
 
 
+(defn ->byte-order
+  "
+  Turn a keyword into a `ByteOrder` instance.
+  "
+  ^ByteOrder [order]
+  (case order
+    :big-endian ByteOrder/BIG_ENDIAN
+    :little-endian ByteOrder/LITTLE_ENDIAN
+    :native (ByteOrder/nativeOrder)
+    (throw (Err/error nil
+                      "unknown byte order: %s"
+                      (into-array [order])))))
+
+
 (defn ->options
   "
   Build an Options object out from a map or nil.
@@ -473,7 +497,22 @@
                   encode-unsupported?
                   io-temp-file?
                   save-meta?
-                  append?]}
+                  append?
+                  buffer-size
+                  version
+                  array-byte-order
+                  keyword-refs?
+                  string-refs
+                  byte-slices?
+                  lazy-seqs?
+                  io-streaming?
+                  io-temp-dir
+                  framed?
+                  index-every
+                  sync-every
+                  async-write?
+                  block-codec
+                  block-size]}
           opts]
 
       (cond-> (Options/builder)
@@ -502,6 +541,51 @@
         (boolean? append?)
         (.append append?)
 
+        buffer-size
+        (.bufferSize buffer-size)
+
+        version
+        (.version (short version))
+
+        array-byte-order
+        (.arrayByteOrder (->byte-order array-byte-order))
+
+        (boolean? keyword-refs?)
+        (.keywordRefs keyword-refs?)
+
+        string-refs
+        (.stringRefs string-refs)
+
+        (boolean? byte-slices?)
+        (.byteSlices byte-slices?)
+
+        (boolean? lazy-seqs?)
+        (.lazySeqs lazy-seqs?)
+
+        (boolean? io-streaming?)
+        (.ioStreaming io-streaming?)
+
+        io-temp-dir
+        (.ioTempDir (.toPath (io/file io-temp-dir)))
+
+        (boolean? framed?)
+        (.framed framed?)
+
+        index-every
+        (.indexEvery index-every)
+
+        sync-every
+        (.syncEvery sync-every)
+
+        (boolean? async-write?)
+        (.asyncWrite async-write?)
+
+        block-codec
+        (.blockCodec (name block-codec))
+
+        block-size
+        (.blockSize block-size)
+
         :finally
         (.build)))))
 
@@ -532,30 +616,85 @@
   "
   Make an `Encoder` instance. The `out` is anything
   that can be transformed into an `OutputStream`
-  using the `io/output-stream` function. The `options`
-  is either a Clojure map or nil.
+  using the `io/output-stream` function. A writable
+  channel or an `AsynchronousFileChannel` is written
+  with no stream. The `options` is either a Clojure
+  map or nil.
   "
   (^Encoder [out]
    (encoder out nil))
   (^Encoder [out options]
-   (Encoder/create -encode
-                   (io/output-stream out)
-                   (->options options))))
+   (cond
+
+     (instance? WritableByteChannel out)
+     (Encoder/create ^IFn -encode
+                     ^WritableByteChannel out
+                     (->options options))
+
+     (instance? AsynchronousFileChannel out)
+     (Encoder/create ^IFn -encode
+                     ^AsynchronousFileChannel out
+                     (->options options))
+
+     :else
+     (Encoder/create ^IFn -encode
+                     (io/output-stream out)
+                     (->options options)))))
 
 
 (defn decoder
   "
   Make a `Decoder` instance. The `src` is anything
   that can be transformed into an `InputStream`
-  using the `io/input-stream` function. The `options`
-  is either a Clojure map or nil.
+  using the `io/input-stream` function. A byte array
+  or a `ByteBuffer` is parsed in place with no stream.
+  A file or a path with the `:mmap?` option is mapped
+  into memory. The `options` is either a Clojure map
+  or nil.
   "
   (^Decoder [src]
    (decoder src nil))
   (^Decoder [src options]
-   (Decoder/create -decode
-                   (io/input-stream src)
-                   (->options options))))
+   (cond
+
+     (bytes? src)
+     (let [^bytes src src]
+       (Decoder/create ^MultiFn -decode
+                       src
+                       0
+                       (alength src)
+                       (->options options)))
+
+     (instance? ByteBuffer src)
+     (Decoder/create ^MultiFn -decode
+                     ^ByteBuffer src
+                     (->options options))
+
+     (instance? ReadableByteChannel src)
+     (Decoder/create ^MultiFn -decode
+                     ^ReadableByteChannel src
+                     (->options options))
+
+     (instance? AsynchronousFileChannel src)
+     (Decoder/create ^MultiFn -decode
+                     ^AsynchronousFileChannel src
+                     (->options options))
+
+     (and (:mmap? options)
+          (or (instance? File src) (string? src)))
+     (Decoder/createMapped ^MultiFn -decode
+                           (.toPath (io/file src))
+                           (->options options))
+
+     :else
+     (let [^InputStream in (io/input-stream src)]
+       (try
+         (Decoder/create ^MultiFn -decode
+                         in
+                         (->options options))
+         (catch Throwable e
+           (.close in)
+           (throw e)))))))
 
 
 (defn version
@@ -584,15 +723,27 @@
   (.encodeMulti encoder coll))
 
 
+(defn ->output
+  "
+  Coerce the `out` object to an output stream unless
+  it's a channel that the encoder writes directly.
+  "
+  ^java.io.Closeable [out]
+  (if (or (instance? WritableByteChannel out)
+          (instance? AsynchronousFileChannel out))
+    out
+    (io/output-stream out)))
+
+
 (defmacro with-encoder
   "
   Perform the body binding the new `Encoder` object
   to the `bind` symbol. The `out` object gets coerced
-  to the output stream. Both encoder and the `out`
-  object get closed afterwards.
+  to the output stream unless it's a channel. Both
+  encoder and the `out` object get closed afterwards.
   "
   [[bind out options] & body]
-  `(with-open [out# (io/output-stream ~out)
+  `(with-open [out# (->output ~out)
                ~bind (encoder out# ~options)]
      ~@body))
 
@@ -601,12 +752,12 @@
   "
   Perform the body binding the new `Decoder` object
   to the `bind` symbol. The `src` object gets coerced
-  to the input stream. Both encoder and the `src`
-  object get closed afterwards.
+  to the input stream unless it's a byte array or a
+  `ByteBuffer`. Both decoder and the stream get closed
+  afterwards.
   "
   [[bind src options] & body]
-  `(with-open [src# (io/input-stream ~src)
-               ~bind (decoder src# ~options)]
+  `(with-open [~bind (decoder ~src ~options)]
      ~@body))
 
 
@@ -619,6 +770,27 @@
   (.decode decoder))
 
 
+(defn skip
+  "
+  Skip a single object in the decoder. Values framed
+  with the `:framed?` option are jumped over; others
+  are decoded and dropped. Return false when no items
+  left.
+  "
+  [^Decoder decoder]
+  (.skip decoder))
+
+
+(defn seek
+  "
+  Move the decoder to the n-th top-level object of a dump
+  written with the `:index-every` option. The decoder must
+  read a byte array, a buffer or a file with `:mmap?`.
+  "
+  [^Decoder decoder n]
+  (.seekTo decoder (long n)))
+
+
 (defn decode-seq
   "
   Get a lazy sequence of decoded values out from
@@ -681,6 +853,32 @@
      (encode-seq e xs))))
 
 
+(defn encode-seq-parallel-to
+  "
+  Like `encode-seq-to` but encode batches of values in
+  parallel and write them in the original order. The
+  `:batch-size` option sets the number of values in a batch
+  (256 by default), `:window` the number of batches in flight
+  (twice the parallelism by default), and `:pool` an executor
+  (the common `ForkJoinPool` by default). Keyword and string
+  references, the index and sync markers are not supported.
+  Return a number of values written.
+  "
+  ([xs out]
+   (encode-seq-parallel-to xs out nil))
+  ([xs out options]
+   (let [^ExecutorService pool
+         (or (:pool options) (ForkJoinPool/commonPool))
+
+         window
+         (or (:window options)
+             (* 2 (if (instance? ForkJoinPool pool)
+                    (.getParallelism ^ForkJoinPool pool)
+                    (.availableProcessors (Runtime/getRuntime)))))]
+     (with-encoder [e out options]
+       (.encodeParallel e xs pool (int (:batch-size options 256)) (int window))))))
+
+
 (defn encode-to-bytes
   "
   Encode a single value into a byte array.
@@ -731,6 +929,41 @@
      (vec e))))
 
 
+(defn nth-from
+  "
+  Decode the n-th value from the `src` source written
+  with the `:index-every` option. A file or a path is
+  mapped into memory to jump right to the value.
+  "
+  ([src n]
+   (nth-from src n nil))
+  ([src n options]
+   (with-decoder [d src (assoc options :mmap? true)]
+     (seek d n)
+     (decode d))))
+
+
+(defn fold-from
+  "
+  Reduce the values of a file written with the `:sync-every`
+  option in parallel. The file is split into ranges at sync
+  blocks; each range is reduced with `reducef` starting from
+  `(combinef)`, and the results are merged with `combinef`
+  in the order of the ranges. With `{:ordered? false}`, the
+  results are merged as soon as they are ready. The `:pool`
+  option sets a `ForkJoinPool` (the common pool by default).
+  "
+  ([src combinef reducef]
+   (fold-from src combinef reducef nil))
+  ([src combinef reducef options]
+   (with-open [f (SplitFile/open (.toPath (io/file src)))]
+     (let [^ForkJoinPool pool (or (:pool options) (ForkJoinPool/commonPool))
+           opts (->options options)]
+       (if (false? (:ordered? options))
+         (.foldUnordered f -decode opts pool combinef reducef)
+         (.fold f -decode opts pool combinef reducef))))))
+
+
 ;;
 ;; Expanding
 ;;
@@ -752,6 +985,8 @@
   ether top-level `encode` function or by calling the low-level
   `.writeInt`, `.writeString`, and other methods.
 
+  When the `Type` is a `java.util.Comparator`, sorted sets
+  and maps built with it keep it when encoded.
   "
   [[OID Type encoder value] & body]
   (let [e (with-meta encoder {:tag 'deed.Encoder})]
@@ -761,6 +996,8 @@
          (-encode [~value ~e]
            (.writeOID ~e ~OID)
            ~@body))
+       (when (isa? ~Type java.util.Comparator)
+         (Encoder/registerComparator ~Type))
        nil)))
 
 
@@ -779,10 +1016,13 @@
   methods, and construct the final value out from them.
   "
   [[OID decoder] & body]
-  `(do
+  `(let [handler#
+         (fn [~(with-meta decoder {:tag 'deed.Decoder})]
+           ~@body)]
      (defmethod -decode ~OID
-       [_# ~(with-meta decoder {:tag 'deed.Decoder})]
-       ~@body)
+       [_# decoder#]
+       (handler# decoder#))
+     (Registry/register (short ~OID) (get-method -decode ~OID) handler#)
      nil))
 
 
@@ -813,9 +1053,13 @@
          (-encode [this# ^Encoder encoder#]
            (.encodeAsMap encoder# ~OID this#)))
 
-       (defmethod -decode ~OID
-         [_# ^Decoder decoder#]
-         (~create (.readClojureMap decoder#)))
+       (let [handler#
+             (fn [^Decoder decoder#]
+               (~create (.readClojureMap decoder#)))]
+         (defmethod -decode ~OID
+           [_# decoder#]
+           (handler# decoder#))
+         (Registry/register (short ~OID) (get-method -decode ~OID) handler#))
 
        nil)))
 
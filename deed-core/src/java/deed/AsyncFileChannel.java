@@ -0,0 +1,89 @@
+package deed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.ExecutionException;
+
+// Presents an asynchronous file channel as a blocking one with
+// a position of its own. Every read or write waits for the result.
+final class AsyncFileChannel implements SeekableByteChannel {
+
+    private final AsynchronousFileChannel channel;
+    private long position;
+
+    AsyncFileChannel(final AsynchronousFileChannel channel, final long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    private static IOException unwrap(final ExecutionException e) {
+        return e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+    }
+
+    @Override
+    public int read(final ByteBuffer dst) throws IOException {
+        final int r;
+        try {
+            r = channel.read(dst, position).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading", e);
+        }
+        if (r > 0) {
+            position += r;
+        }
+        return r;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        final int r;
+        try {
+            r = channel.write(src, position).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing", e);
+        }
+        position += r;
+        return r;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(final long newPosition) {
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(final long size) throws IOException {
+        channel.truncate(size);
+        position = Math.min(position, size);
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,125 @@
+package deed;
+
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Writes filled buffers to a stream on a thread of its own. There are
+// two buffers: the encoder fills one while the other is being written.
+// Once both are full, the encoder waits. After a write error, the rest
+// of the buffers are dropped, and the error is thrown on the next swap,
+// flush or close. The thread lives until the writer gets closed, so an
+// encoder must be closed even when it fails.
+final class AsyncWriter {
+
+    private record Chunk(byte[] buf, int len) {}
+
+    private static final Chunk STOP = new Chunk(null, 0);
+
+    private final OutputStream outputStream;
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(2);
+    private final Thread thread;
+    private volatile Throwable error = null;
+
+    AsyncWriter(final OutputStream outputStream, final int bufferSize) {
+        this.outputStream = outputStream;
+        this.free.add(new byte[bufferSize]);
+        this.thread = new Thread(this::run, "deed-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void run() {
+        Chunk chunk;
+        try {
+            while ((chunk = filled.take()) != STOP) {
+                if (error == null) {
+                    try {
+                        outputStream.write(chunk.buf(), 0, chunk.len());
+                    } catch (Throwable e) {
+                        // the thread must live on to hand the buffers back
+                        error = e;
+                    }
+                }
+                free.put(chunk.buf());
+            }
+        } catch (InterruptedException e) {
+            if (error == null) {
+                error = e;
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A thread that is gone will never take or hand back a buffer,
+    // so the waits below give up on it instead of blocking forever.
+    private void ensureAlive() {
+        if (!thread.isAlive()) {
+            check();
+            throw Err.error("the writer thread has stopped");
+        }
+    }
+
+    private void put(final Chunk chunk) throws InterruptedException {
+        while (!filled.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            ensureAlive();
+        }
+    }
+
+    private byte[] take() throws InterruptedException {
+        byte[] buf;
+        while ((buf = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+            ensureAlive();
+        }
+        return buf;
+    }
+
+    private void check() {
+        if (error != null) {
+            throw Err.error(error, "could not write into the stream");
+        }
+    }
+
+    // Hand a filled buffer over and take the other one
+    // once it has been written.
+    byte[] swap(final byte[] buf, final int len) {
+        final byte[] next;
+        check();
+        try {
+            put(new Chunk(buf, len));
+            next = take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Err.error(e, "interrupted while writing into the stream");
+        }
+        check();
+        return next;
+    }
+
+    // Wait until everything handed over has been written.
+    void await() {
+        try {
+            free.put(take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Err.error(e, "interrupted while writing into the stream");
+        }
+        check();
+    }
+
+    // Stop the thread after the last buffer has been written.
+    void close() {
+        try {
+            if (thread.isAlive()) {
+                put(STOP);
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Err.error(e, "interrupted while writing into the stream");
+        }
+        check();
+    }
+}
@@ -0,0 +1,175 @@
+package deed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads a stream written by BlockOutputStream. Blocks are decompressed
+// one at a time as they are read; skipped blocks are jumped over with
+// no decompression. Block streams written one after another, e.g. in
+// the append mode, are read as one.
+public final class BlockInputStream extends InputStream {
+
+    private final InputStream in;
+    private final byte[] head = new byte[8];
+    private Codec codec;
+    private byte[] block;
+    private byte[] packed;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private BlockInputStream(final InputStream in) {
+        this.in = in;
+    }
+
+    public static BlockInputStream of(final InputStream in) {
+        final BlockInputStream stream = new BlockInputStream(in);
+        try {
+            stream.readFully(stream.head, 0, 2);
+            stream.readHeader();
+        } catch (IOException e) {
+            throw Err.error(e, "could not read a block header");
+        }
+        return stream;
+    }
+
+    private static short getShort(final byte[] b, final int off) {
+        return (short) ((b[off] & 0xFF) << 8 | (b[off + 1] & 0xFF));
+    }
+
+    private static int getInt(final byte[] b, final int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    private void readFully(final byte[] dst, final int off, final int len) throws IOException {
+        if (in.readNBytes(dst, off, len) != len) {
+            throw new EOFException("the block stream ends unexpectedly");
+        }
+    }
+
+    // The first two bytes of the header are in head already.
+    private void readHeader() throws IOException {
+        if (getShort(head, 0) != OID.BLOCKS) {
+            throw Err.error("not a block stream");
+        }
+        readFully(head, 2, 6);
+        codec = Codecs.byId(getShort(head, 2));
+        final int blockSize = getInt(head, 4);
+        if (blockSize < 1 || blockSize > Const.BLOCK_SIZE_MAX) {
+            throw Err.error("wrong block size: %s", blockSize);
+        }
+        if (block == null || block.length < blockSize) {
+            block = new byte[blockSize];
+            packed = new byte[codec.maxCompressedLength(blockSize)];
+        } else if (packed.length < codec.maxCompressedLength(blockSize)) {
+            packed = new byte[codec.maxCompressedLength(blockSize)];
+        }
+    }
+
+    // Read the lengths of the next block into head. Returns false at
+    // the end of the last stream.
+    private boolean nextHead() throws IOException {
+        while (true) {
+            readFully(head, 0, 8);
+            if (getInt(head, 0) != 0 || getInt(head, 4) != 0) {
+                return true;
+            }
+            // the end of a stream; another one may follow
+            final int b = in.read();
+            if (b == -1) {
+                eof = true;
+                return false;
+            }
+            head[0] = (byte) b;
+            readFully(head, 1, 1);
+            readHeader();
+        }
+    }
+
+    private void readBlock(final int size, final int len) throws IOException {
+        if (len < 1 || len > block.length || size < 1 || size > len) {
+            throw Err.error("a corrupted block: %s bytes packed, %s bytes plain", size, len);
+        }
+        if (size == len) {
+            readFully(block, 0, len);
+        } else {
+            readFully(packed, 0, size);
+            codec.decompress(packed, 0, size, block, 0, len);
+        }
+        pos = 0;
+        limit = len;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        if (eof || !nextHead()) {
+            return false;
+        }
+        readBlock(getInt(head, 0), getInt(head, 4));
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, limit - pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    // Whole blocks that fall into the skipped range are not decompressed.
+    @Override
+    public long skip(final long n) throws IOException {
+        long left = n;
+        int k;
+        int size;
+        int len;
+        while (left > 0) {
+            if (pos < limit) {
+                k = (int) Math.min(left, limit - pos);
+                pos += k;
+                left -= k;
+            } else {
+                if (eof || !nextHead()) {
+                    break;
+                }
+                size = getInt(head, 0);
+                len = getInt(head, 4);
+                if (len <= left && len > 0 && size > 0) {
+                    in.skipNBytes(size);
+                    left -= len;
+                } else {
+                    readBlock(size, len);
+                }
+            }
+        }
+        return n - left;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,126 @@
+package deed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Compresses a stream block by block. The stream starts with the
+// BLOCKS OID, the codec id and the block size. Every block has its
+// compressed and uncompressed lengths up front, so a reader can skip
+// it without decompressing. A block that doesn't shrink is stored as
+// is, with both lengths equal. Two zero lengths end the stream.
+public final class BlockOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Codec codec;
+    private final byte[] block;
+    private final byte[] packed;
+    private int pos = 0;
+    private boolean closed = false;
+
+    private BlockOutputStream(final OutputStream out, final Codec codec, final int blockSize) {
+        if (blockSize < 1 || blockSize > Const.BLOCK_SIZE_MAX) {
+            throw Err.error("wrong block size: %s", blockSize);
+        }
+        this.out = out;
+        this.codec = codec;
+        this.block = new byte[blockSize];
+        this.packed = new byte[8 + codec.maxCompressedLength(blockSize)];
+    }
+
+    public static BlockOutputStream of(final OutputStream out, final Codec codec, final int blockSize) {
+        final BlockOutputStream stream = new BlockOutputStream(out, codec, blockSize);
+        final byte[] header = new byte[8];
+        putShort(header, 0, OID.BLOCKS);
+        putShort(header, 2, codec.id());
+        putInt(header, 4, blockSize);
+        try {
+            out.write(header);
+        } catch (IOException e) {
+            throw Err.error(e, "could not write a block header");
+        }
+        return stream;
+    }
+
+    private static void putShort(final byte[] b, final int off, final short s) {
+        b[off] = (byte) (s >>> 8);
+        b[off + 1] = (byte) s;
+    }
+
+    private static void putInt(final byte[] b, final int off, final int i) {
+        b[off] = (byte) (i >>> 24);
+        b[off + 1] = (byte) (i >>> 16);
+        b[off + 2] = (byte) (i >>> 8);
+        b[off + 3] = (byte) i;
+    }
+
+    private void writeBlock(final byte[] src, final int off, final int len) throws IOException {
+        final int size = codec.compress(src, off, len, packed, 8);
+        if (size < len) {
+            putInt(packed, 0, size);
+            putInt(packed, 4, len);
+            out.write(packed, 0, 8 + size);
+        } else {
+            putInt(packed, 0, len);
+            putInt(packed, 4, len);
+            out.write(packed, 0, 8);
+            out.write(src, off, len);
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (pos > 0) {
+            writeBlock(block, 0, pos);
+            pos = 0;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (pos == block.length) {
+            flushBlock();
+        }
+        block[pos++] = (byte) b;
+    }
+
+    // Whole blocks of a large array are compressed right from it.
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        int i = 0;
+        int n;
+        while (i < len) {
+            if (pos == 0 && len - i >= block.length) {
+                writeBlock(b, off + i, block.length);
+                i += block.length;
+            } else {
+                n = Math.min(len - i, block.length - pos);
+                System.arraycopy(b, off + i, block, pos, n);
+                pos += n;
+                i += n;
+                if (pos == block.length) {
+                    flushBlock();
+                }
+            }
+        }
+    }
+
+    // Ends the current block, even if it's not full.
+    @Override
+    public void flush() throws IOException {
+        flushBlock();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBlock();
+            out.write(new byte[8]);
+        } finally {
+            out.close();
+        }
+    }
+}
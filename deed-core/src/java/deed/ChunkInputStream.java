@@ -0,0 +1,80 @@
+package deed;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+// Reads the chunks of an encoded input stream right from the decoder.
+// Once the decoder moves on, the rest of the chunks are skipped, and
+// the stream is no longer valid.
+final class ChunkInputStream extends InputStream implements Pending {
+
+    private final Decoder decoder;
+    private int remaining = 0;
+    private boolean done = false;
+    private boolean detached = false;
+
+    ChunkInputStream(final Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    // A stream cannot be kept in memory, so it gets skipped anyway.
+    @Override
+    public void drain() {
+        skip();
+    }
+
+    @Override
+    public void detach() {
+        detached = true;
+    }
+
+    @Override
+    public void skip() {
+        if (!done) {
+            decoder.skipBytes(remaining);
+            while ((remaining = decoder.readLength()) != 0) {
+                decoder.skipBytes(remaining);
+            }
+            done = true;
+        }
+        detached = true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] one = new byte[1];
+        final int r = read(one, 0, 1);
+        return r == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (detached) {
+            throw new IOException("the stream is no longer valid: the decoder has moved on");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining == 0) {
+            if (done) {
+                return -1;
+            }
+            remaining = decoder.readLength();
+            if (remaining == 0) {
+                done = true;
+                return -1;
+            }
+        }
+        final int n = Math.min(len, remaining);
+        decoder.readRaw(b, off, n);
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+        decoder.release(this);
+    }
+}
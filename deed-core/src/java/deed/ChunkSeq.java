@@ -0,0 +1,78 @@
+package deed;
+
+import clojure.lang.AFn;
+import clojure.lang.ArrayChunk;
+import clojure.lang.ChunkedCons;
+import clojure.lang.LazySeq;
+
+import java.util.ArrayDeque;
+
+// Produces a lazy seq of an uncountable collection chunk by chunk.
+// Each chunk is read from the decoder when the seq gets realized,
+// unless the decoder had to drain the rest of the collection first
+// to decode something that follows it in the same value. Once the
+// decoder moves on to the next top-level value or gets closed, the
+// unread chunks are gone.
+final class ChunkSeq extends AFn implements Pending {
+
+    private final Decoder decoder;
+    private final ArrayDeque<Object[]> drained = new ArrayDeque<>();
+    private boolean done = false;
+    private boolean detached = false;
+
+    ChunkSeq(final Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    // Read all the chunks left into memory.
+    @Override
+    public void drain() {
+        Object[] chunk;
+        while (!done) {
+            chunk = decoder.readChunk();
+            if (chunk == null) {
+                done = true;
+            } else {
+                drained.add(chunk);
+            }
+        }
+    }
+
+    @Override
+    public void skip() {
+        decoder.skipChunks();
+        detached = true;
+    }
+
+    @Override
+    public void detach() {
+        detached = true;
+    }
+
+    private Object[] nextChunk() {
+        if (!drained.isEmpty()) {
+            return drained.poll();
+        }
+        if (done) {
+            return null;
+        }
+        if (detached) {
+            throw Err.error("a lazy seq is no longer valid: the decoder has moved on");
+        }
+        final Object[] chunk = decoder.readPendingChunk(this);
+        if (chunk == null) {
+            done = true;
+        }
+        return chunk;
+    }
+
+    @Override
+    public Object invoke() {
+        final Object[] chunk = nextChunk();
+        if (chunk == null) {
+            return null;
+        } else {
+            return new ChunkedCons(new ArrayChunk(chunk), new LazySeq(this));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package deed;
+
+// A block compression codec. A codec gets a whole block at once and
+// has no state between blocks, so it must be safe to share between
+// threads. Codecs of other libraries are plugged in with the standard
+// ServiceLoader: list the class in META-INF/services/deed.Codec.
+public interface Codec {
+
+    // Written into the stream to find the codec when reading. The ids
+    // below 0x100 are reserved for the built-in codecs.
+    short id();
+
+    // Used in the block-codec option.
+    String name();
+
+    // The largest size of len bytes once compressed.
+    int maxCompressedLength(int len);
+
+    // Compress len bytes of src into dst, which has room for
+    // maxCompressedLength(len) bytes. Returns the compressed size.
+    int compress(byte[] src, int srcOff, int len, byte[] dst, int dstOff);
+
+    // Decompress srcLen bytes of src into exactly dstLen bytes of dst.
+    void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen);
+}
@@ -0,0 +1,103 @@
+package deed;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Block codecs by name and by id: the built-in ones and the ones
+// found by the ServiceLoader. A provider that cannot be loaded or
+// clashes with a known codec is skipped; looking its name or id up
+// later throws the reason instead of breaking the class for good.
+public final class Codecs {
+
+    // The ids below are reserved for the built-in codecs.
+    private static final int RESERVED_IDS = 0x100;
+
+    private static final Map<String, Codec> BY_NAME = new ConcurrentHashMap<>();
+    private static final Map<Short, Codec> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, RuntimeException> SKIPPED_BY_NAME = new ConcurrentHashMap<>();
+    private static final Map<Short, RuntimeException> SKIPPED_BY_ID = new ConcurrentHashMap<>();
+    private static volatile Throwable loadError = null;
+
+    static {
+        add(new LZ4Codec());
+        add(new DeflateCodec());
+        final Iterator<Codec> providers = ServiceLoader.load(Codec.class).iterator();
+        Codec codec;
+        while (true) {
+            try {
+                if (!providers.hasNext()) {
+                    break;
+                }
+                codec = providers.next();
+            } catch (ServiceConfigurationError e) {
+                loadError = e;
+                continue;
+            }
+            try {
+                register(codec);
+            } catch (RuntimeException e) {
+                SKIPPED_BY_NAME.putIfAbsent(codec.name(), e);
+                SKIPPED_BY_ID.putIfAbsent(codec.id(), e);
+            }
+        }
+    }
+
+    private static void add(final Codec codec) {
+        BY_ID.put(codec.id(), codec);
+        BY_NAME.put(codec.name(), codec);
+    }
+
+    // Plug in a codec of another library. Its id must be out of
+    // the reserved range, and neither the id nor the name may be
+    // taken by another codec.
+    public static synchronized void register(final Codec codec) {
+        final short id = codec.id();
+        if ((id & 0xFFFF) < RESERVED_IDS) {
+            throw Err.error("codec %s has id %s, which is reserved for the built-in codecs",
+                    codec.name(), id
+            );
+        }
+        Codec prev = BY_ID.get(id);
+        if (prev != null) {
+            throw Err.error("codecs %s and %s have the same id: %s", prev.name(), codec.name(), id);
+        }
+        prev = BY_NAME.get(codec.name());
+        if (prev != null) {
+            throw Err.error("codecs with ids %s and %s have the same name: %s", prev.id(), id, codec.name());
+        }
+        add(codec);
+    }
+
+    public static Codec byName(final String name) {
+        final Codec codec = BY_NAME.get(name);
+        if (codec != null) {
+            return codec;
+        }
+        final RuntimeException skipped = SKIPPED_BY_NAME.get(name);
+        if (skipped != null) {
+            throw Err.error(skipped, "codec %s has been skipped: %s", name, skipped.getMessage());
+        }
+        if (loadError != null) {
+            throw Err.error(loadError, "unknown codec: %s", name);
+        }
+        throw Err.error("unknown codec: %s", name);
+    }
+
+    public static Codec byId(final short id) {
+        final Codec codec = BY_ID.get(id);
+        if (codec != null) {
+            return codec;
+        }
+        final RuntimeException skipped = SKIPPED_BY_ID.get(id);
+        if (skipped != null) {
+            throw Err.error(skipped, "codec id %s has been skipped: %s", id, skipped.getMessage());
+        }
+        if (loadError != null) {
+            throw Err.error(loadError, "unknown codec id: %s", id);
+        }
+        throw Err.error("unknown codec id: %s", id);
+    }
+}
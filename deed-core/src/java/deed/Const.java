@@ -2,13 +2,36 @@ package deed;
 
 public class Const {
     public static short HEADER_GAP = 30;
-    public static short HEADER_VERSION = 1;
+    public static short HEADER_VERSION = 2;
+    public static short VERSION_VARINT = 2;
+    public static short FLAG_ARRAYS_LITTLE_ENDIAN = 0x0001;
 
     public static long OPT_DEREF_TIMEOUT_MS = 5000;
     public static int OPT_OBJECT_CHUNK_SIZE = 0xFF;
     public static int OPT_BYTE_CHUNK_SIZE = 0xFFFF;
     public static boolean OPT_USE_IO_TEMP_FILE = false;
     public static boolean OPT_APPEND = false;
+    public static int OPT_BUFFER_SIZE = 0xFFFF;
+    public static int MIN_BUFFER_SIZE = 0xFF;
+    public static boolean OPT_KEYWORD_REFS = false;
+    public static int IDENT_REFS_LIMIT = 0xFFFF;
+    public static int OPT_STRING_REFS = 0;
+    public static int STRING_REFS_LIMIT = 0xFFFF;
+    public static int STRING_REFS_MAX_LENGTH = 64;
+    public static boolean OPT_BYTE_SLICES = false;
+    public static boolean OPT_LAZY_SEQS = false;
+    public static boolean OPT_IO_STREAMING = false;
+    public static boolean OPT_FRAMED = false;
+    public static int OPT_INDEX_EVERY = 0;
+    public static int OPT_SYNC_EVERY = 0;
+    public static boolean OPT_ASYNC_WRITE = false;
+    public static int SYNC_SIZE = 26;
+    public static int HEADER_SIZE = 34;
+    public static long SPLIT_SIZE = 256L << 20;
+    public static int OPT_BLOCK_SIZE = 256 << 10;
+    public static int BLOCK_SIZE_MAX = 64 << 20;
+    public static long MAP_WINDOW_SIZE = 1L << 30;
+    public static int ARRAY_MAP_MAX_SIZE = 8;
 
     public static int OPT_UNCOUNTABLE_MAX_ITEMS = Integer.MAX_VALUE;
     public static boolean OPT_ENCODE_UNSUPPORTED = true;
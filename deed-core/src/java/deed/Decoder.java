@@ -2,11 +2,19 @@ package deed;
 
 import clojure.lang.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
 import java.time.*;
 import java.util.*;
 import java.io.*;
@@ -14,14 +22,38 @@ import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     private Header header = null;
-    private final DataInputStream inputStream;
+    private final InputStream inputStream;
+    private final ReadableByteChannel channel;
+    private ByteBuffer source;
+    private final MappedFile mappedFile;
     private final MultiFn mmDecode;
     private final EOF EOF;
     private final Options options;
+    private final byte[] buf;
+    private final boolean inPlace;
+    private final int start;
+    private Index index = null;
+    private int pos;
+    private int limit;
+    private int depth = 0;
+    private boolean varInts = false;
+    private ByteOrder arrayOrder = ByteOrder.BIG_ENDIAN;
+    private final RefTable idents = new RefTable(Const.IDENT_REFS_LIMIT);
+    private final RefTable strings = new RefTable(Const.STRING_REFS_LIMIT);
+    private IdentCache keywordCache = null;
+    private IdentCache symbolCache = null;
+    private Pending pending = null;
+
+    private static final VarHandle VH_SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_CHAR = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     @SuppressWarnings("unused")
     public static Decoder create(final MultiFn mmDecode, final InputStream inputStream) {
@@ -29,86 +61,421 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public static Decoder create(final MultiFn mmDecode, final InputStream inputStream, final Options options) {
-        final Decoder decoder = new Decoder(mmDecode, inputStream, options);
+        final Decoder decoder = new Decoder(mmDecode, options, inputStream, null, null, null,
+                new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)], 0, 0
+        );
+        return decoder.initHeader();
+    }
+
+    // Read a blocking channel with no stream in between. Large arrays
+    // are read from the channel right into place.
+    public static Decoder create(final MultiFn mmDecode, final ReadableByteChannel channel, final Options options) {
+        final Decoder decoder = new Decoder(mmDecode, options, null, channel, null, null,
+                new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)], 0, 0
+        );
         return decoder.initHeader();
     }
 
-    private Decoder(final MultiFn mmDecode, final InputStream inputStream, final Options options) {
+    // Read a file from the start; every read waits for the result.
+    @SuppressWarnings("unused")
+    public static Decoder create(final MultiFn mmDecode, final AsynchronousFileChannel channel, final Options options) {
+        return create(mmDecode, new AsyncFileChannel(channel, 0), options);
+    }
+
+    @SuppressWarnings("unused")
+    public static Decoder create(final MultiFn mmDecode, final byte[] bytes) {
+        return create(mmDecode, bytes, 0, bytes.length, Options.standard());
+    }
+
+    // Parse the array in place: no stream, no extra buffer. The array
+    // is never written to.
+    public static Decoder create(final MultiFn mmDecode,
+                                 final byte[] bytes,
+                                 final int offset,
+                                 final int length,
+                                 final Options options) {
+        Objects.checkFromIndexSize(offset, length, bytes.length);
+        final Decoder decoder = new Decoder(mmDecode, options, null, null, null, null, bytes, offset, offset + length);
+        return decoder.initHeader();
+    }
+
+    // Decode the remaining bytes of a buffer; its position doesn't
+    // change. A heap buffer is parsed in place. A direct or read-only
+    // one is copied into the internal buffer in bulk, block by block.
+    public static Decoder create(final MultiFn mmDecode, final ByteBuffer bb, final Options options) {
+        if (bb.hasArray() && !bb.isReadOnly()) {
+            return create(mmDecode, bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), options);
+        }
+        final Decoder decoder = new Decoder(mmDecode, options, null, null, bb.slice(), null,
+                new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)], 0, 0
+        );
+        return decoder.initHeader();
+    }
+
+    // Decode a part of a dump with no header of its own, e.g. a range
+    // of a file split by sync blocks. The header comes from the dump.
+    public static Decoder createBlock(final MultiFn mmDecode,
+                                      final ByteBuffer bb,
+                                      final Header header,
+                                      final Options options) {
+        final Decoder decoder;
+        if (bb.hasArray() && !bb.isReadOnly()) {
+            final int offset = bb.arrayOffset() + bb.position();
+            decoder = new Decoder(mmDecode, options, null, null, null, null, bb.array(), offset, offset + bb.remaining());
+        } else {
+            decoder = new Decoder(mmDecode, options, null, null, bb.slice(), null,
+                    new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)], 0, 0
+            );
+        }
+        return decoder.useHeader(header);
+    }
+
+    @SuppressWarnings("unused")
+    public static Decoder createMapped(final MultiFn mmDecode, final Path path, final Options options) {
+        return createMapped(mmDecode, path, Const.MAP_WINDOW_SIZE, options);
+    }
+
+    // Decode a file mapped into memory. Files larger than the window
+    // are mapped piece by piece as the decoder goes on.
+    public static Decoder createMapped(final MultiFn mmDecode,
+                                       final Path path,
+                                       final long windowSize,
+                                       final Options options) {
+        final MappedFile mappedFile = new MappedFile(path, windowSize);
+        try {
+            final ByteBuffer first = mappedFile.next();
+            final Decoder decoder = new Decoder(mmDecode, options, null, null,
+                    first == null ? ByteBuffer.allocate(0) : first,
+                    mappedFile,
+                    new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)], 0, 0
+            );
+            return decoder.initHeader();
+        } catch (RuntimeException e) {
+            mappedFile.close();
+            throw e;
+        }
+    }
+
+    private Decoder(final MultiFn mmDecode,
+                    final Options options,
+                    final InputStream inputStream,
+                    final ReadableByteChannel channel,
+                    final ByteBuffer source,
+                    final MappedFile mappedFile,
+                    final byte[] buf,
+                    final int pos,
+                    final int limit) {
         this.EOF = new EOF();
         this.options = options;
         this.mmDecode = mmDecode;
-        this.inputStream = new DataInputStream(inputStream);
+        this.inputStream = inputStream;
+        this.channel = channel;
+        this.source = source;
+        this.mappedFile = mappedFile;
+        this.inPlace = inputStream == null && channel == null && source == null;
+        this.buf = buf;
+        this.pos = pos;
+        this.limit = limit;
+        this.start = pos;
     }
 
+    private record Index(int every, long count, long[] offsets) {}
+
     @SuppressWarnings("unused")
     public short version() {
         return this.header.version();
     }
 
-    private void skipBytes(final int n) {
+    @SuppressWarnings("unused")
+    public Header header() {
+        return this.header;
+    }
+
+    // Try to have at least n unread bytes in the buffer. Moves
+    // the unread tail to the beginning and refills the rest.
+    // Returns false when the stream ends before n bytes are read.
+    private boolean fill(final int n) {
+        if (limit - pos >= n) {
+            return true;
+        }
+        if (inPlace) {
+            return false;
+        }
+        final int rest = limit - pos;
+        if (rest > 0 && pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, rest);
+        }
+        pos = 0;
+        limit = rest;
+        int r;
+        while (limit < n) {
+            r = readSource(buf, limit, buf.length - limit);
+            if (r == -1) {
+                return false;
+            }
+            limit += r;
+        }
+        return true;
+    }
+
+    private boolean nextWindow() {
+        if (mappedFile == null) {
+            return false;
+        }
+        final ByteBuffer next = mappedFile.next();
+        if (next == null) {
+            return false;
+        }
+        source = next;
+        return true;
+    }
+
+    // Read up to len bytes from the stream or the source buffer.
+    // Returns -1 when there is nothing left.
+    private int readSource(final byte[] dst, final int off, final int len) {
+        if (source != null) {
+            if (!source.hasRemaining() && !nextWindow()) {
+                return -1;
+            }
+            final int n = Math.min(len, source.remaining());
+            source.get(dst, off, n);
+            return n;
+        }
         try {
-            inputStream.skipNBytes(n);
+            if (channel != null) {
+                return channel.read(ByteBuffer.wrap(dst, off, len));
+            }
+            return inputStream.read(dst, off, len);
         } catch (IOException e) {
-            throw Err.error(e, "could not skip N bytes, n: %s", n);
+            throw Err.error(e, "could not read from the stream");
+        }
+    }
+
+    private void require(final int n) {
+        if (!fill(n)) {
+            throw Err.error("unexpected end of stream: %s bytes required, %s available",
+                    n, limit - pos
+            );
         }
     }
 
+    // Read exactly len bytes into the array. The buffered bytes
+    // go first; large remainders are read from the stream directly.
+    void readRaw(final byte[] dst, final int off, final int len) {
+        final int avail = Math.min(limit - pos, len);
+        System.arraycopy(buf, pos, dst, off, avail);
+        pos += avail;
+        final int rest = len - avail;
+        if (rest == 0) {
+            return;
+        }
+        if (inPlace || rest < buf.length) {
+            require(rest);
+            System.arraycopy(buf, pos, dst, off + avail, rest);
+            pos += rest;
+        } else {
+            int done = 0;
+            int r;
+            while (done < rest) {
+                r = readSource(dst, off + avail + done, rest - done);
+                if (r == -1) {
+                    throw Err.error("unexpected end of stream: %s bytes required, %s available",
+                            rest, done
+                    );
+                }
+                done += r;
+            }
+        }
+    }
+
+    void skipBytes(final int n) {
+        final int avail = Math.min(limit - pos, n);
+        pos += avail;
+        final int rest = n - avail;
+        if (rest == 0) {
+            return;
+        }
+        if (inputStream != null) {
+            // Some streams, e.g. a file one, skip past the end silently,
+            // so the last byte gets read to make sure it's there.
+            final int last;
+            try {
+                inputStream.skipNBytes(rest - 1);
+                last = inputStream.read();
+            } catch (EOFException e) {
+                throw Err.error(e, "unexpected end of stream: %s bytes to skip", rest);
+            } catch (IOException e) {
+                throw Err.error(e, "could not skip N bytes, n: %s", n);
+            }
+            if (last == -1) {
+                throw Err.error("unexpected end of stream: %s bytes to skip", rest);
+            }
+        } else if (channel instanceof SeekableByteChannel sc) {
+            final long available;
+            try {
+                available = sc.size() - sc.position();
+                if (rest <= available) {
+                    sc.position(sc.position() + rest);
+                }
+            } catch (IOException e) {
+                throw Err.error(e, "could not skip N bytes, n: %s", n);
+            }
+            if (rest > available) {
+                throw Err.error("unexpected end of stream: %s bytes required, %s available",
+                        rest, available
+                );
+            }
+        } else if (channel != null) {
+            int left = rest;
+            int k;
+            while (left > 0) {
+                require(Math.min(left, buf.length));
+                k = Math.min(left, limit - pos);
+                pos += k;
+                left -= k;
+            }
+        } else if (source != null && rest <= source.remaining()) {
+            source.position(source.position() + rest);
+        } else if (source != null) {
+            int left = rest;
+            int k;
+            while (left > 0) {
+                if (!source.hasRemaining() && !nextWindow()) {
+                    throw Err.error("unexpected end of stream: %s bytes required, %s available",
+                            rest, rest - left
+                    );
+                }
+                k = Math.min(left, source.remaining());
+                source.position(source.position() + k);
+                left -= k;
+            }
+        } else {
+            require(rest);
+        }
+    }
+
+    // A block-compressed dump is read by a new decoder over
+    // the decompressed stream.
     private Decoder initHeader() {
+        if (fill(2) && (short) VH_SHORT.get(buf, pos) == OID.BLOCKS) {
+            return create(mmDecode, BlockInputStream.of(unread()), options);
+        }
         final Object x = decode();
         if (x instanceof Header h) {
-            this.header = h;
+            return useHeader(h);
         } else {
             throw Err.error("Unexpected header object: %s", x);
         }
+    }
+
+    // The bytes not read yet: the buffered ones, then
+    // the rest of the stream or the channel.
+    private InputStream unread() {
+        final InputStream buffered = new ByteArrayInputStream(buf, pos, limit - pos);
+        if (inputStream != null) {
+            return new SequenceInputStream(buffered, inputStream);
+        } else if (channel != null) {
+            return new SequenceInputStream(buffered, Channels.newInputStream(channel));
+        } else if (inPlace) {
+            return buffered;
+        } else {
+            throw Err.error("a block-compressed dump cannot be mapped or read from a direct buffer");
+        }
+    }
+
+    private Decoder useHeader(final Header h) {
+        if (h.version() > Const.HEADER_VERSION) {
+            throw Err.error("unsupported version: %s, max supported version: %s",
+                    h.version(), Const.HEADER_VERSION
+            );
+        }
+        this.header = h;
+        this.varInts = h.version() >= Const.VERSION_VARINT;
+        if (h.hasFlag(Const.FLAG_ARRAYS_LITTLE_ENDIAN)) {
+            this.arrayOrder = ByteOrder.LITTLE_ENDIAN;
+        }
         return this;
     }
 
     public short readShort() {
-        try {
-            return inputStream.readShort();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read short");
-        }
+        require(2);
+        final short s = (short) VH_SHORT.get(buf, pos);
+        pos += 2;
+        return s;
     }
 
     public long readLong() {
-        try {
-            return inputStream.readLong();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read long");
-        }
+        require(8);
+        final long l = (long) VH_LONG.get(buf, pos);
+        pos += 8;
+        return l;
     }
 
     public int readInteger() {
-        try {
-            return inputStream.readInt();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read integer");
+        require(4);
+        final int i = (int) VH_INT.get(buf, pos);
+        pos += 4;
+        return i;
+    }
+
+    // Reads byte by byte when the buffer is close to its end
+    // so the decoder never waits for bytes that don't belong
+    // to the value.
+    private long readUVarLong() {
+        final boolean fast = limit - pos >= 10;
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw Err.error("malformed varint");
+            }
+            b = fast ? buf[pos++] : readByte();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return result;
+    }
+
+    public long readVarLong() {
+        final long l = readUVarLong();
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    public int readLength() {
+        if (varInts) {
+            final long len = readUVarLong();
+            if (len > Integer.MAX_VALUE) {
+                throw Err.error("length is out of range: %s", len);
+            }
+            return (int) len;
+        } else {
+            return readInteger();
         }
     }
 
+    private short decodeShort() {
+        return varInts ? (short) readVarLong() : readShort();
+    }
+
+    private int decodeInteger() {
+        return varInts ? (int) readVarLong() : readInteger();
+    }
+
+    private long decodeLong() {
+        return varInts ? readVarLong() : readLong();
+    }
+
     public boolean readBoolean() {
-        try {
-            return inputStream.readBoolean();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read boolean");
-        }
+        return readByte() != 0;
     }
 
     public double readDouble() {
-        try {
-            return inputStream.readDouble();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read double");
-        }
+        return Double.longBitsToDouble(readLong());
     }
 
     public float readFloat() {
-        try {
-            return inputStream.readFloat();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read float");
-        }
+        return Float.intBitsToFloat(readInteger());
     }
 
     public Atom readAtom() {
@@ -122,43 +489,124 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public String readString() {
-        final int len = readInteger();
-        try {
-            final byte[] buf = inputStream.readNBytes(len);
-            return new String(buf, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            throw Err.error(e, "could not read N bytes, n: %s", len);
+        return readString(readLength());
+    }
+
+    private String readString(final int len) {
+        if (len <= buf.length) {
+            require(len);
+            final String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        } else {
+            final byte[] bytes = new byte[len];
+            readRaw(bytes, 0, len);
+            return new String(bytes, StandardCharsets.UTF_8);
         }
     }
 
+    @SuppressWarnings("unused")
+    public String readStringDef() {
+        final int id = readLength();
+        final String s = readString();
+        strings.set(id, s);
+        return s;
+    }
+
+    @SuppressWarnings("unused")
+    public String readStringRef() {
+        return (String) strings.get(readLength());
+    }
+
     public Keyword readKeyword() {
-        final String payload = readString();
-        return Keyword.intern(payload);
+        final int len = readLength();
+        if (!IdentCache.fits(len)) {
+            return Keyword.intern(readString(len));
+        }
+        require(len);
+        if (keywordCache == null) {
+            keywordCache = new IdentCache();
+        }
+        Keyword kw = (Keyword) keywordCache.get(buf, pos, len);
+        if (kw == null) {
+            kw = Keyword.intern(new String(buf, pos, len, StandardCharsets.UTF_8));
+            keywordCache.put(buf, pos, len, kw);
+        }
+        pos += len;
+        return kw;
     }
 
     public Symbol readSymbol() {
-        final String payload = readString();
-        return Symbol.intern(payload);
+        final int len = readLength();
+        if (!IdentCache.fits(len)) {
+            return Symbol.intern(readString(len));
+        }
+        require(len);
+        if (symbolCache == null) {
+            symbolCache = new IdentCache();
+        }
+        Symbol sym = (Symbol) symbolCache.get(buf, pos, len);
+        if (sym == null) {
+            sym = Symbol.intern(new String(buf, pos, len, StandardCharsets.UTF_8));
+            symbolCache.put(buf, pos, len, sym);
+        }
+        pos += len;
+        return sym;
+    }
+
+    @SuppressWarnings("unused")
+    public Keyword readKeywordDef() {
+        final int id = readLength();
+        final Keyword kw = readKeyword();
+        idents.set(id, kw);
+        return kw;
+    }
+
+    @SuppressWarnings("unused")
+    public Symbol readSymbolDef() {
+        final int id = readLength();
+        final Symbol sym = readSymbol();
+        idents.set(id, sym);
+        return sym;
+    }
+
+    @SuppressWarnings("unused")
+    public Object readIdentRef() {
+        final int id = readLength();
+        return idents.get(id);
     }
 
     public byte[] readBytes() {
-        final int size = readInteger();
-        if (size > 0) {
-            try {
-                return inputStream.readNBytes(size);
-            } catch (IOException e) {
-                throw Err.error(e, "could not read N bytes, n: %s", size);
-            }
+        final int size = readLength();
+        final byte[] bytes = new byte[size];
+        readRaw(bytes, 0, size);
+        return bytes;
+    }
+
+    // Like readBytes but returns a read-only view of the source when
+    // the bytes are there in whole: a slice of the array decoded in
+    // place or of the source buffer. Bytes from a stream get copied.
+    public ByteBuffer readByteSlice() {
+        final int size = readLength();
+        final int buffered = limit - pos;
+        final ByteBuffer slice;
+        if (inPlace && size <= buffered) {
+            slice = ByteBuffer.wrap(buf, pos, size).slice();
+            pos += size;
+        } else if (source != null && source.position() >= buffered && size <= buffered + source.remaining()) {
+            slice = source.slice(source.position() - buffered, size);
+            skipBytes(size);
+        } else {
+            final byte[] bytes = new byte[size];
+            readRaw(bytes, 0, size);
+            slice = ByteBuffer.wrap(bytes);
         }
-        return new byte[0];
+        return slice.asReadOnlyBuffer();
     }
 
     public byte readByte() {
-        try {
-            return inputStream.readByte();
-        } catch (IOException e) {
-            throw Err.error("cannot read byte");
-        }
+        require(1);
+        return buf[pos++];
     }
 
     public BigInteger readBigInteger() {
@@ -183,11 +631,21 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return new Ratio(numerator, denominator);
     }
 
+    // Small maps are built right from an array of keys and values.
+    // Larger ones would turn into a hash map after 8 entries anyway,
+    // so they start as a hash map.
     public IPersistentMap readClojureMap() {
         Object key;
         Object val;
-        final int len = readInteger();
-        ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+        final int len = readLength();
+        if (len <= Const.ARRAY_MAP_MAX_SIZE) {
+            final Object[] kvs = new Object[len * 2];
+            for (int i = 0; i < kvs.length; i++) {
+                kvs[i] = decode();
+            }
+            return PersistentArrayMap.createAsIfByAssoc(kvs);
+        }
+        ITransientMap m = PersistentHashMap.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             key = decode();
             val = decode();
@@ -198,7 +656,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public IPersistentCollection readClojureSet() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         ITransientCollection s = PersistentHashSet.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -207,23 +665,43 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return s.persistent();
     }
 
-    public IPersistentCollection readClojureSortedSet() {
+    // Gives the default comparator back when the recorded one
+    // did not decode into a Comparator, e.g. an unsupported fn.
+    private Comparator<?> readComparator() {
+        final Object x = decode();
+        if (x instanceof Comparator<?> c) {
+            return c;
+        } else {
+            return RT.DEFAULT_COMPARATOR;
+        }
+    }
+
+    // PersistentTreeMap has no public way to build a tree from
+    // ordered entries, so they are added one by one.
+    private IPersistentCollection readClojureSortedSet(final IPersistentCollection empty) {
         Object x;
-        IPersistentCollection s = PersistentTreeSet.EMPTY;
-        final int len = readInteger();
+        IPersistentCollection s = empty;
+        final int len = readLength();
         for (int i = 0; i < len; i++) {
             x = decode();
-            s.cons(x);
             s = s.cons(x);
         }
         return s;
     }
 
-    public PersistentTreeMap readClojureSortedMap() {
+    public IPersistentCollection readClojureSortedSet() {
+        return readClojureSortedSet(PersistentTreeSet.EMPTY);
+    }
+
+    public IPersistentCollection readClojureSortedSetBy() {
+        return readClojureSortedSet(PersistentTreeSet.create(readComparator(), null));
+    }
+
+    private PersistentTreeMap readClojureSortedMap(final PersistentTreeMap empty) {
         Object key;
         Object val;
-        PersistentTreeMap m = PersistentTreeMap.EMPTY;
-        final int len = readInteger();
+        PersistentTreeMap m = empty;
+        final int len = readLength();
         for (int i = 0; i < len; i++) {
             key = decode();
             val = decode();
@@ -232,12 +710,20 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return m;
     }
 
+    public PersistentTreeMap readClojureSortedMap() {
+        return readClojureSortedMap(PersistentTreeMap.EMPTY);
+    }
+
+    public PersistentTreeMap readClojureSortedMapBy() {
+        return readClojureSortedMap(PersistentTreeMap.create(readComparator(), null));
+    }
+
     public ISeq readClojureSeq() {
         int limit;
         Object x;
         ITransientCollection v = PersistentVector.EMPTY.asTransient();
         while (true) {
-            limit = readInteger();
+            limit = readLength();
             if (limit == 0) {
                 break;
             } else {
@@ -250,12 +736,102 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return v.persistent().seq();
     }
 
+    // With the lazySeqs option, the rest of the collection stays in the
+    // stream until the seq gets realized. Decoding anything else within
+    // the same value drains the rest into memory first; moving on to the
+    // next top-level value skips it.
+    public LazySeq readLazyChunks() {
+        drainPending();
+        final ChunkSeq s = new ChunkSeq(this);
+        pending = s;
+        return new LazySeq(s);
+    }
+
+    public Stream<Object> readLazyStream() {
+        // LazySeq gives a raw iterator
+        @SuppressWarnings("unchecked")
+        final Iterator<Object> it = readLazyChunks().iterator();
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false);
+    }
+
+    Object[] readPendingChunk(final ChunkSeq s) {
+        if (pending != s) {
+            throw Err.error("a lazy seq has lost its place in the stream");
+        }
+        pending = null;
+        final Object[] chunk = readChunk();
+        if (chunk != null) {
+            pending = s;
+        }
+        return chunk;
+    }
+
+    Object[] readChunk() {
+        depth++;
+        try {
+            final int len = readLength();
+            if (len == 0) {
+                return null;
+            }
+            final Object[] chunk = new Object[len];
+            for (int i = 0; i < len; i++) {
+                chunk[i] = decode();
+            }
+            drainPending();
+            return chunk;
+        } finally {
+            depth--;
+        }
+    }
+
+    private void drainPending() {
+        if (pending != null) {
+            final Pending p = pending;
+            pending = null;
+            if (depth > 0) {
+                p.drain();
+            } else {
+                p.skip();
+            }
+        }
+    }
+
+    private void skipPending() {
+        if (pending != null) {
+            final Pending p = pending;
+            pending = null;
+            p.skip();
+        }
+    }
+
+    // Skip the rest of a chunked collection without keeping the values.
+    void skipChunks() {
+        depth++;
+        try {
+            int len;
+            while ((len = readLength()) != 0) {
+                for (int i = 0; i < len; i++) {
+                    skip();
+                    skipPending();
+                }
+            }
+        } finally {
+            depth--;
+        }
+    }
+
+    void release(final Pending p) {
+        if (pending == p) {
+            drainPending();
+        }
+    }
+
     public ArrayList<?> readChunkedList() {
         int limit;
         Object x;
         final ArrayList<Object> list = new ArrayList<>();
         while (true) {
-            limit = readInteger();
+            limit = readLength();
             if (limit == 0) {
                 break;
             } else {
@@ -270,7 +846,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public List<?> readJavaList() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         final ArrayList<Object> list = new ArrayList<>(len);
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -281,7 +857,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public Vector<?> readJavaVector() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         final Vector<Object> vector = new Vector<>(len);
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -290,9 +866,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return vector;
     }
 
-    public ITransientCollection readTransientVector() {
+    private ITransientCollection readTransientVector(final int len) {
         Object x;
-        final int len = readInteger();
         ITransientCollection v = PersistentVector.EMPTY.asTransient();
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -301,13 +876,43 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return v;
     }
 
+    public ITransientCollection readTransientVector() {
+        return readTransientVector(readLength());
+    }
+
+    // Up to 32 items, the array becomes the tail of the vector as is.
+    // The tree nodes of a larger vector cannot be built outside of
+    // clojure.lang, so it gets filled through a transient.
     public IPersistentCollection readClojureVector() {
-        return readTransientVector().persistent();
+        final int len = readLength();
+        if (len <= 32) {
+            final Object[] items = new Object[len];
+            for (int i = 0; i < len; i++) {
+                items[i] = decode();
+            }
+            return PersistentVector.adopt(items);
+        }
+        return readTransientVector(len).persistent();
+    }
+
+    public IPersistentList readClojureList() {
+        final int len = readLength();
+        final Object[] items = new Object[len];
+        for (int i = 0; i < len; i++) {
+            items[i] = decode();
+        }
+        IPersistentList l = PersistentList.EMPTY;
+        for (int i = len - 1; i >= 0; i--) {
+            l = (IPersistentList) l.cons(items[i]);
+        }
+        return l;
     }
 
+    // PersistentQueue has no public constructor that takes
+    // its front and rear parts, so the items go through cons.
     public PersistentQueue readClojureQueue() {
         Object x;
-        final int len = readInteger();
+        final int len = readLength();
         PersistentQueue q = PersistentQueue.EMPTY;
         for (int i = 0; i < len; i++) {
             x = decode();
@@ -319,7 +924,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     public Map<?,?> readJavaMap() {
         Object key;
         Object val;
-        final int len = readInteger();
+        final int len = readLength();
         HashMap<Object, Object> m = new HashMap<>(len);
         for (int i = 0; i < len; i++) {
             key = decode();
@@ -349,11 +954,10 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public char readCharacter() {
-        try {
-            return inputStream.readChar();
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read character");
-        }
+        require(2);
+        final char c = (char) VH_CHAR.get(buf, pos);
+        pos += 2;
+        return c;
     }
 
     public UUID readUUID() {
@@ -363,7 +967,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
     }
 
     public Object[] readObjectArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final Object[] array = new Object[len];
         for (int i = 0; i < len; i++) {
             array[i] = decode();
@@ -371,65 +975,94 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         return array;
     }
 
+    // See the Encoder: returns the number of items of
+    // the given size available in the buffer.
+    private int arrayChunk(final int size, final int left) {
+        require(size);
+        return Math.min(left, (limit - pos) / size);
+    }
+
+    private ByteBuffer arrayView(final int len) {
+        final ByteBuffer bb = ByteBuffer.wrap(buf, pos, len).order(arrayOrder);
+        pos += len;
+        return bb;
+    }
+
     public int[] readIntArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final int[] array = new int[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readInteger();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(4, len - off);
+            arrayView(n * 4).asIntBuffer().get(array, off, n);
         }
         return array;
     }
 
     public short[] readShortArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final short[] array = new short[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readShort();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(2, len - off);
+            arrayView(n * 2).asShortBuffer().get(array, off, n);
         }
         return array;
     }
 
     public boolean[] readBoolArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final boolean[] array = new boolean[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readBoolean();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(1, len - off);
+            for (int i = off; i < off + n; i++) {
+                array[i] = buf[pos++] != 0;
+            }
         }
         return array;
     }
 
     public float[] readFloatArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final float[] array = new float[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readFloat();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(4, len - off);
+            arrayView(n * 4).asFloatBuffer().get(array, off, n);
         }
         return array;
     }
 
     public double[] readDoubleArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final double[] array = new double[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readDouble();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(8, len - off);
+            arrayView(n * 8).asDoubleBuffer().get(array, off, n);
         }
         return array;
     }
 
     public long[] readLongArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final long[] array = new long[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readLong();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(8, len - off);
+            arrayView(n * 8).asLongBuffer().get(array, off, n);
         }
         return array;
     }
 
     public char[] readCharArray() {
-        final int len = readInteger();
+        final int len = readLength();
         final char[] array = new char[len];
-        for (int i = 0; i < len; i++) {
-            array[i] = readCharacter();
+        int n;
+        for (int off = 0; off < len; off += n) {
+            n = arrayChunk(2, len - off);
+            arrayView(n * 2).asCharBuffer().get(array, off, n);
         }
         return array;
     }
@@ -587,7 +1220,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         if (hasMessage) {
             message = readString();
         }
-        final int traceLen = readInteger();
+        final int traceLen = readLength();
         final StackTraceElement[] trace = new StackTraceElement[traceLen];
         for (int i = 0; i < traceLen; i++) {
             trace[i] = readStackTraceElement();
@@ -597,7 +1230,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
         if (hasCause) {
             cause = decodeThrowable();
         }
-        final int suppressedLen = readInteger();
+        final int suppressedLen = readLength();
         final Throwable[] suppressed = new Throwable[suppressedLen];
         for (int i = 0; i < suppressedLen; i++) {
             suppressed[i] = decodeThrowable();
@@ -648,61 +1281,237 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     public Header readHeader() {
         final short version = readShort();
-        skipBytes(Const.HEADER_GAP);
-        return Header.of(version);
+        final short flags = readShort();
+        skipBytes(Const.HEADER_GAP - 2);
+        return Header.of(version, flags);
     }
 
+    // With the ioStreaming option, the stream reads the chunks right
+    // from the decoder and stays valid until the next decode() call.
     public InputStream readInputStream() {
+        if (options.ioStreaming()) {
+            drainPending();
+            final ChunkInputStream in = new ChunkInputStream(this);
+            pending = in;
+            return in;
+        }
         final boolean useFile = options.ioUseTempFile();
-        byte[] bytes;
+        byte[] chunk = new byte[0];
+        int len;
         OutputStream out;
         if (useFile) {
-            out = FileOutStream.ofTemp();
+            out = FileOutStream.ofTemp(options.ioTempDir());
         } else {
             out = new ByteArrayOutputStream();
         }
-        try (final OutputStream o = out) {
-            while (true) {
-                bytes = readBytes();
-                if (bytes.length == 0) {
-                    break;
-                } else {
-                    o.write(bytes);
+        boolean done = false;
+        try {
+            try (final OutputStream o = out) {
+                while ((len = readLength()) != 0) {
+                    if (chunk.length < len) {
+                        chunk = new byte[len];
+                    }
+                    readRaw(chunk, 0, len);
+                    o.write(chunk, 0, len);
                 }
+            } catch (IOException e) {
+                throw Err.error(e, "couldn't write to the output stream");
+            }
+            final InputStream in;
+            if (out instanceof ByteArrayOutputStream ba) {
+                in = IOTool.byteArrayInputStream(ba);
+            } else {
+                FileOutStream fo = (FileOutStream) out;
+                in = TempFileInStream.of(fo.file(), options.bufferSize());
+            }
+            done = true;
+            return in;
+        } finally {
+            // the stream that would delete the file is never returned
+            if (!done && out instanceof FileOutStream fo) {
+                fo.file().delete();
             }
-        } catch (IOException e) {
-            throw Err.error(e, "couldn't write to the output stream");
-        }
-        if (out instanceof ByteArrayOutputStream ba) {
-            return IOTool.byteArrayInputStream(ba);
-        } else {
-            FileOutStream fo = (FileOutStream) out;
-            return IOTool.fileInputStream(fo.file());
         }
     }
 
     public ByteBuffer readByteBuffer() {
         final int position = readInteger();
         final int limit = readInteger();
-        final byte[] bytes = readBytes();
-        return ByteBuffer.wrap(bytes).position(position).limit(limit);
+        final ByteBuffer bb = options.byteSlices() ? readByteSlice() : ByteBuffer.wrap(readBytes());
+        return bb.position(position).limit(limit);
+    }
+
+    private void skipIndex() {
+        readInteger();
+        readLong();
+        final int n = readInteger();
+        for (int i = 0; i <= n; i++) {
+            readLong();
+        }
+    }
+
+    private long dumpSize() {
+        if (inPlace) {
+            return limit - start;
+        } else if (mappedFile != null) {
+            return mappedFile.size();
+        } else if (source != null) {
+            return source.limit();
+        } else {
+            throw Err.error("cannot seek in a stream, use a file with the mmap option, a byte array or a buffer");
+        }
+    }
+
+    // Bytes at the given offset of the dump; the decoder
+    // doesn't move.
+    private ByteBuffer readAt(final long offset, final int len) {
+        if (inPlace) {
+            return ByteBuffer.wrap(buf, start + (int) offset, len);
+        } else if (mappedFile != null) {
+            return mappedFile.read(offset, len);
+        } else {
+            return source.slice((int) offset, len);
+        }
+    }
+
+    private Index readIndex() {
+        final long size = dumpSize();
+        final long footer = size < 26 ? -1 : readAt(size - 8, 8).getLong();
+        if (footer < 0 || footer > size - 26) {
+            throw Err.error("the dump has no index, encode it with the index-every option");
+        }
+        final ByteBuffer head = readAt(footer, 18);
+        final short oid = head.getShort();
+        final int every = head.getInt();
+        final long count = head.getLong();
+        final int n = head.getInt();
+        if (oid != OID.INDEX || every <= 0 || 26L + 8L * n != size - footer) {
+            throw Err.error("the dump has no index, encode it with the index-every option");
+        }
+        final long[] offsets = new long[n];
+        readAt(footer + 18, 8 * n).asLongBuffer().get(offsets);
+        return new Index(every, count, offsets);
+    }
+
+    private void jumpTo(final long offset) {
+        if (inPlace) {
+            pos = start + (int) offset;
+        } else if (mappedFile != null) {
+            source = mappedFile.seek(offset);
+            if (source == null) {
+                source = ByteBuffer.allocate(0);
+            }
+            pos = limit = 0;
+        } else {
+            source.position((int) offset);
+            pos = limit = 0;
+        }
+    }
+
+    // Move to the n-th top-level value using the index footer: jump to
+    // the closest offset before it and skip the rest. The dump must be
+    // a byte array, a buffer or a mapped file.
+    public void seekTo(final long n) {
+        drainPending();
+        if (index == null) {
+            index = readIndex();
+        }
+        if (n < 0 || n >= index.count()) {
+            throw Err.error("item %s is out of range, items: %s", n, index.count());
+        }
+        final int k = (int) (n / index.every());
+        jumpTo(index.offsets()[k]);
+        for (long i = (long) k * index.every(); i < n; i++) {
+            skip();
+        }
+    }
+
+    // Skip the next value. A framed value is jumped over by its length
+    // unless it defines back references; anything else gets decoded.
+    // Returns false at the end of the stream.
+    public boolean skip() {
+        drainPending();
+        if (!fill(2)) {
+            return decode() != EOF;
+        }
+        final short oid = (short) VH_SHORT.get(buf, pos);
+        if (oid == OID.INDEX) {
+            pos += 2;
+            skipIndex();
+            return skip();
+        } else if (oid == OID.SYNC) {
+            pos += 2;
+            skipBytes(Const.SYNC_SIZE - 2);
+            return skip();
+        } else if (oid == OID.FRAME) {
+            pos += 2;
+            depth++;
+            try {
+                skipBytes(readInteger());
+            } finally {
+                depth--;
+            }
+            return true;
+        } else if (oid == OID.META) {
+            pos += 2;
+            depth++;
+            try {
+                decode();
+                skip();
+            } finally {
+                depth--;
+            }
+            return true;
+        } else {
+            return decode() != EOF;
+        }
+    }
+
+    private Object readFramed() {
+        readInteger();
+        return decode();
     }
 
     public Object decode() {
-        short oid;
+        if (pending != null) {
+            drainPending();
+        }
+        if (!fill(2)) {
+            if (limit == pos && depth == 0) {
+                return EOF;
+            } else if (limit == pos) {
+                throw Err.error("unexpected end of stream: a nested value is missing");
+            } else {
+                throw Err.error("unexpected end of stream: a truncated OID");
+            }
+        }
+
+        final short oid = (short) VH_SHORT.get(buf, pos);
+        pos += 2;
 
+        if (oid == OID.INDEX) {
+            skipIndex();
+            return decode();
+        }
+        if (oid == OID.SYNC) {
+            skipBytes(Const.SYNC_SIZE - 2);
+            return decode();
+        }
+
+        depth++;
         try {
-            oid = inputStream.readShort();
-        } catch (EOFException e) {
-            return EOF;
-        } catch (IOException e) {
-            throw Err.error(e, "cannot read short");
+            return decodeByOID(oid);
+        } finally {
+            depth--;
         }
+    }
 
+    private Object decodeByOID(final short oid) {
         return switch (oid) {
             case OID.IO_BYTEBUFFER -> readByteBuffer();
             case OID.HEADER -> readHeader();
             case OID.META -> readMetadata();
+            case OID.FRAME, OID.FRAME_REFS -> readFramed();
             case OID.UNSUPPORTED -> readUnsupported();
             case OID.IO_INPUT_STREAM -> readInputStream();
             case OID.EX_NPE -> readNullPointerException();
@@ -710,8 +1519,12 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.EXCEPTION -> readException();
             case OID.EX_INFO -> readExceptionInfo();
             case OID.THROWABLE -> readThrowable();
-            case OID.JVM_STREAM -> readChunkedList().stream();
-            case OID.JVM_ITERATOR -> readChunkedList().iterator();
+            case OID.JVM_STREAM -> options.lazySeqs()
+                    ? readLazyStream()
+                    : readChunkedList().stream();
+            case OID.JVM_ITERATOR -> options.lazySeqs()
+                    ? readLazyChunks().iterator()
+                    : readChunkedList().iterator();
             case OID.JVM_ITERABLE -> readChunkedList();
             case OID.JVM_LIST -> readJavaList();
             case OID.JVM_VECTOR -> readJavaVector();
@@ -722,9 +1535,11 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.CLJ_QUEUE_EMPTY -> PersistentQueue.EMPTY;
             case OID.CLJ_QUEUE -> readClojureQueue();
             case OID.CLJ_LIST_EMPTY -> PersistentList.EMPTY;
-            case OID.CLJ_LIST, OID.CLJ_VEC -> readClojureVector();
+            case OID.CLJ_LIST -> readClojureList();
+            case OID.CLJ_VEC -> readClojureVector();
             case OID.CLJ_TR_VEC -> readTransientVector();
-            case OID.CLJ_SEQ, OID.CLJ_LAZY_SEQ -> readClojureSeq();
+            case OID.CLJ_SEQ -> readClojureSeq();
+            case OID.CLJ_LAZY_SEQ -> options.lazySeqs() ? readLazyChunks() : readClojureSeq();
             case OID.SQL_TIME -> readSqlTime();
             case OID.SQL_DATE -> readSqlDate();
             case OID.SQL_TIMESTAMP -> readSqlTimestamp();
@@ -742,6 +1557,8 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.CLJ_SORTED_SET -> readClojureSortedSet();
             case OID.CLJ_SORTED_MAP_EMPTY -> PersistentTreeMap.EMPTY;
             case OID.CLJ_SORTED_MAP -> readClojureSortedMap();
+            case OID.CLJ_SORTED_SET_BY -> readClojureSortedSetBy();
+            case OID.CLJ_SORTED_MAP_BY -> readClojureSortedMapBy();
             case OID.DT_LOCAL_DATE -> readLocalDate();
             case OID.DT_LOCAL_TIME -> readLocalTime();
             case OID.UTIL_DATE -> readUtilDate();
@@ -758,12 +1575,12 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.SHORT_ONE -> (short)1;
             case OID.SHORT_MINUS_ONE -> (short)-1;
             case OID.SHORT_ZERO -> (short)0;
-            case OID.SHORT -> readShort();
-            case OID.INT -> readInteger();
+            case OID.SHORT -> decodeShort();
+            case OID.INT -> decodeInteger();
             case OID.INT_ONE -> 1;
             case OID.INT_ZERO -> 0;
             case OID.INT_MINUS_ONE -> -1;
-            case OID.LONG -> readLong();
+            case OID.LONG -> decodeLong();
             case OID.LONG_ONE -> (long)1;
             case OID.LONG_MINUS_ONE -> (long)-1;
             case OID.LONG_ZERO -> (long)0;
@@ -775,12 +1592,17 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.CLJ_REF -> readRef();
             case OID.STRING -> readString();
             case OID.STRING_EMPTY -> "";
+            case OID.STRING_DEF -> readStringDef();
+            case OID.STRING_REF -> readStringRef();
             case OID.CHAR -> readCharacter();
             case OID.URL -> readURL();
             case OID.URI -> readURI();
             case OID.UUID -> readUUID();
             case OID.CLJ_KEYWORD -> readKeyword();
             case OID.CLJ_SYMBOL -> readSymbol();
+            case OID.CLJ_KEYWORD_DEF -> readKeywordDef();
+            case OID.CLJ_SYMBOL_DEF -> readSymbolDef();
+            case OID.CLJ_IDENT_REF -> readIdentRef();
             case OID.CLJ_RATIO -> readRatio();
             case OID.JVM_BIG_INT -> readBigInteger();
             case OID.JVM_BIG_DEC -> readBigDecimal();
@@ -791,7 +1613,7 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.BYTE_MINUS_ONE -> Const.BYTE_MINUS_ONE;
             case OID.BYTE_ZERO -> Const.BYTE_ZERO;
             case OID.BYTE_ONE -> Const.BYTE_ONE;
-            case OID.ARR_BYTE -> readBytes();
+            case OID.ARR_BYTE -> options.byteSlices() ? readByteSlice() : readBytes();
             case OID.ARR_OBJ -> readObjectArray();
             case OID.ARR_INT -> readIntArray();
             case OID.ARR_SHORT -> readShortArray();
@@ -801,10 +1623,28 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
             case OID.ARR_LONG -> readLongArray();
             case OID.ARR_CHAR -> readCharArray();
             case OID.FUTURE -> readFuture();
-            default -> mmDecode.invoke(oid, this);
+            default -> decodeCustom(oid);
         };
     }
 
+    // A registered handler is used only while its -decode method is
+    // in place. The check is a single comparison until the method
+    // table changes; then the method gets looked up once again.
+    private Object decodeCustom(final short oid) {
+        final Registry.Entry entry = Registry.get(oid);
+        if (entry == null) {
+            return mmDecode.invoke(oid, this);
+        }
+        final IPersistentMap table = mmDecode.getMethodTable();
+        if (entry.table() != table) {
+            if (mmDecode.getMethod(oid) != entry.method()) {
+                return mmDecode.invoke(oid, this);
+            }
+            Registry.confirm(oid, entry, table);
+        }
+        return entry.handler().invoke(this);
+    }
+
     @SuppressWarnings("unused")
     public ISeq decodeSeq() {
         return RT.chunkIteratorSeq(this.iterator());
@@ -849,8 +1689,19 @@ public final class Decoder implements Iterable<Object>, AutoCloseable {
 
     @Override
     public void close() {
+        if (pending != null) {
+            pending.detach();
+            pending = null;
+        }
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
         try {
-            inputStream.close();
+            if (inputStream != null) {
+                inputStream.close();
+            } else if (channel != null) {
+                channel.close();
+            }
         } catch (IOException e) {
             throw Err.error(e, "could not close the stream");
         }
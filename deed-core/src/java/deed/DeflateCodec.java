@@ -0,0 +1,72 @@
+package deed;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate, the same compression gzip uses, block by block.
+final class DeflateCodec implements Codec {
+
+    @Override
+    public short id() {
+        return 2;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int maxCompressedLength(final int len) {
+        return len + (len >> 12) + (len >> 14) + (len >> 25) + 13 + 6;
+    }
+
+    @Override
+    public int compress(final byte[] src, final int srcOff, final int len, final byte[] dst, final int dstOff) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(src, srcOff, len);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished()) {
+                if (dstOff + n == dst.length) {
+                    throw Err.error("no room to deflate %s bytes", len);
+                }
+                n += deflater.deflate(dst, dstOff + n, dst.length - dstOff - n);
+            }
+            return n;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(final byte[] src,
+                           final int srcOff,
+                           final int srcLen,
+                           final byte[] dst,
+                           final int dstOff,
+                           final int dstLen) {
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(src, srcOff, srcLen);
+            int n = 0;
+            int r;
+            while (n < dstLen) {
+                r = inflater.inflate(dst, dstOff + n, dstLen - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != dstLen) {
+                throw Err.error("a corrupted deflate block: %s bytes expected, %s decoded", dstLen, n);
+            }
+        } catch (DataFormatException e) {
+            throw Err.error(e, "a corrupted deflate block");
+        } finally {
+            inflater.end();
+        }
+    }
+}
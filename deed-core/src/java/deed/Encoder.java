@@ -3,16 +3,26 @@ package deed;
 import clojure.lang.*;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.time.*;
 import java.time.temporal.ChronoField;
 import java.util.*;
 import java.net.URL;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -22,9 +32,152 @@ import java.util.stream.Stream;
 public final class Encoder implements AutoCloseable {
 
     private final Header header;
-    private final DataOutputStream outputStream;
+    private final OutputStream outputStream;
+    private final WritableByteChannel channel;
     private final Options options;
     private final IFn protoEncode;
+    private byte[] buf;
+    private int pos;
+    private int frames = 0;
+    private int refDefs = 0;
+    private final boolean framed;
+    private final int indexEvery;
+    private final int syncEvery;
+    private final UUID syncMarker;
+    private long lastSync = 0;
+    private long flushed = 0;
+    private int level = 0;
+    private long items = 0;
+    private long[] offsets;
+    private int offsetCount = 0;
+    private final boolean varInts;
+    private final ByteOrder arrayOrder;
+    private final Map<Object, Integer> identRefs;
+    private final LinkedHashMap<String, Integer> stringRefs;
+    private final int stringRefsSize;
+    private AsyncWriter writer = null;
+
+    private static final VarHandle VH_SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_CHAR = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle VH_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // Built-in classes are sent to their methods right away. Anything
+    // else goes through the IEncode protocol. Only exact classes are
+    // listed, so records and types that extend them still reach the
+    // protocol.
+    private enum Builtin {
+        LONG,
+        INTEGER,
+        SHORT,
+        BYTE,
+        DOUBLE,
+        FLOAT,
+        BOOLEAN,
+        CHARACTER,
+        STRING,
+        KEYWORD,
+        SYMBOL,
+        BIG_INT,
+        BIG_INTEGER,
+        BIG_DECIMAL,
+        RATIO,
+        UUID,
+        VECTOR,
+        ARRAY_MAP,
+        HASH_MAP,
+        HASH_SET,
+        SORTED_MAP,
+        SORTED_SET,
+        LIST,
+        EMPTY_LIST,
+        QUEUE,
+        MAP_ENTRY,
+        LAZY_SEQ,
+        CONS,
+        INSTANT,
+        LOCAL_DATE,
+        LOCAL_DATE_TIME,
+        UTIL_DATE,
+        BYTE_ARRAY,
+        SHORT_ARRAY,
+        INT_ARRAY,
+        LONG_ARRAY,
+        FLOAT_ARRAY,
+        DOUBLE_ARRAY,
+        BOOL_ARRAY,
+        CHAR_ARRAY,
+        OBJECT_ARRAY
+    }
+
+    private static final Map<Class<?>, Builtin> BUILTINS = new HashMap<>();
+
+    static {
+        BUILTINS.put(Long.class, Builtin.LONG);
+        BUILTINS.put(Integer.class, Builtin.INTEGER);
+        BUILTINS.put(Short.class, Builtin.SHORT);
+        BUILTINS.put(Byte.class, Builtin.BYTE);
+        BUILTINS.put(Double.class, Builtin.DOUBLE);
+        BUILTINS.put(Float.class, Builtin.FLOAT);
+        BUILTINS.put(Boolean.class, Builtin.BOOLEAN);
+        BUILTINS.put(Character.class, Builtin.CHARACTER);
+        BUILTINS.put(String.class, Builtin.STRING);
+        BUILTINS.put(Keyword.class, Builtin.KEYWORD);
+        BUILTINS.put(Symbol.class, Builtin.SYMBOL);
+        BUILTINS.put(BigInt.class, Builtin.BIG_INT);
+        BUILTINS.put(BigInteger.class, Builtin.BIG_INTEGER);
+        BUILTINS.put(BigDecimal.class, Builtin.BIG_DECIMAL);
+        BUILTINS.put(Ratio.class, Builtin.RATIO);
+        BUILTINS.put(UUID.class, Builtin.UUID);
+        BUILTINS.put(PersistentVector.class, Builtin.VECTOR);
+        BUILTINS.put(PersistentArrayMap.class, Builtin.ARRAY_MAP);
+        BUILTINS.put(PersistentHashMap.class, Builtin.HASH_MAP);
+        BUILTINS.put(PersistentHashSet.class, Builtin.HASH_SET);
+        BUILTINS.put(PersistentTreeMap.class, Builtin.SORTED_MAP);
+        BUILTINS.put(PersistentTreeSet.class, Builtin.SORTED_SET);
+        BUILTINS.put(PersistentList.class, Builtin.LIST);
+        BUILTINS.put(((Object) PersistentList.EMPTY).getClass(), Builtin.EMPTY_LIST);
+        BUILTINS.put(PersistentQueue.class, Builtin.QUEUE);
+        BUILTINS.put(MapEntry.class, Builtin.MAP_ENTRY);
+        BUILTINS.put(LazySeq.class, Builtin.LAZY_SEQ);
+        BUILTINS.put(Cons.class, Builtin.CONS);
+        BUILTINS.put(Instant.class, Builtin.INSTANT);
+        BUILTINS.put(LocalDate.class, Builtin.LOCAL_DATE);
+        BUILTINS.put(LocalDateTime.class, Builtin.LOCAL_DATE_TIME);
+        BUILTINS.put(java.util.Date.class, Builtin.UTIL_DATE);
+        BUILTINS.put(byte[].class, Builtin.BYTE_ARRAY);
+        BUILTINS.put(short[].class, Builtin.SHORT_ARRAY);
+        BUILTINS.put(int[].class, Builtin.INT_ARRAY);
+        BUILTINS.put(long[].class, Builtin.LONG_ARRAY);
+        BUILTINS.put(float[].class, Builtin.FLOAT_ARRAY);
+        BUILTINS.put(double[].class, Builtin.DOUBLE_ARRAY);
+        BUILTINS.put(boolean[].class, Builtin.BOOL_ARRAY);
+        BUILTINS.put(char[].class, Builtin.CHAR_ARRAY);
+        BUILTINS.put(Object[].class, Builtin.OBJECT_ARRAY);
+    }
+
+    // Comparator classes with an encoding of their own. The
+    // expand-encode macro adds comparator types here.
+    private static final Set<Class<?>> COMPARATORS = ConcurrentHashMap.newKeySet();
+
+    private static final ClassValue<Builtin> TYPES = new ClassValue<>() {
+        @Override
+        protected Builtin computeValue(final Class<?> type) {
+            return BUILTINS.get(type);
+        }
+    };
+
+    // Collections with a known count, records and exceptions get
+    // framed. Seqs may be lazy or endless, so they don't.
+    private static final ClassValue<Boolean> COMPOSITE = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(final Class<?> type) {
+            return (Map.class.isAssignableFrom(type)
+                    || Collection.class.isAssignableFrom(type)
+                    || Throwable.class.isAssignableFrom(type))
+                    && !ISeq.class.isAssignableFrom(type);
+        }
+    };
 
     @SuppressWarnings("unused")
     public static Encoder create(final IFn protoEncode, final OutputStream outputStream) {
@@ -32,116 +185,313 @@ public final class Encoder implements AutoCloseable {
     }
 
     public static Encoder create(final IFn protoEncode, final OutputStream outputStream, final Options options) {
-        final Encoder encoder = new Encoder(protoEncode, outputStream, options);
+        final Encoder encoder = new Encoder(protoEncode, withBlocks(outputStream, options), null, options);
+        return encoder.initHeader();
+    }
+
+    // With a block codec, the dump goes through a compressing stream.
+    private static OutputStream withBlocks(final OutputStream outputStream, final Options options) {
+        if (options.blockCodec() == null) {
+            return outputStream;
+        }
+        if (options.indexEvery() > 0 || options.syncEvery() > 0) {
+            throw Err.error("an index and sync markers cannot be used with block compression");
+        }
+        return BlockOutputStream.of(outputStream, Codecs.byName(options.blockCodec()), options.blockSize());
+    }
+
+    // Write into a blocking channel with no stream in between. Arrays
+    // and buffers that don't fit the buffer go out in gathering writes
+    // along with the buffered bytes, with no copy.
+    public static Encoder create(final IFn protoEncode, final WritableByteChannel channel, final Options options) {
+        if (options.blockCodec() != null) {
+            return create(protoEncode, Channels.newOutputStream(channel), options);
+        }
+        final Encoder encoder = new Encoder(protoEncode, null, channel, options);
         return encoder.initHeader();
     }
 
-    private Encoder(final IFn protoEncode, final OutputStream outputStream, final Options options) {
-        this.header = Header.of(Const.HEADER_VERSION);
+    // Every write waits for the result. The writing starts at zero,
+    // or at the end of the file in the append mode.
+    @SuppressWarnings("unused")
+    public static Encoder create(final IFn protoEncode, final AsynchronousFileChannel channel, final Options options) {
+        final long position;
+        try {
+            position = options.append() ? channel.size() : 0;
+        } catch (IOException e) {
+            throw Err.error(e, "could not get the size of a channel");
+        }
+        return create(protoEncode, new AsyncFileChannel(channel, position), options);
+    }
+
+    private Encoder(final IFn protoEncode,
+                    final OutputStream outputStream,
+                    final WritableByteChannel channel,
+                    final Options options) {
+        this.arrayOrder = options.arrayByteOrder();
+        this.header = Header.of(
+                options.version(),
+                arrayOrder == ByteOrder.LITTLE_ENDIAN ? Const.FLAG_ARRAYS_LITTLE_ENDIAN : 0
+        );
         this.protoEncode = protoEncode;
         this.options = options;
-        this.outputStream = new DataOutputStream(outputStream);
+        this.outputStream = outputStream;
+        this.channel = channel;
+        this.buf = new byte[Math.max(options.bufferSize(), Const.MIN_BUFFER_SIZE)];
+        this.pos = 0;
+        this.varInts = options.version() >= Const.VERSION_VARINT;
+        this.framed = options.framed();
+        this.indexEvery = options.indexEvery();
+        this.syncEvery = options.syncEvery();
+        this.syncMarker = syncEvery > 0 ? UUID.randomUUID() : null;
+        this.offsets = indexEvery > 0 ? new long[64] : null;
+        this.identRefs = options.keywordRefs() ? new HashMap<>() : null;
+        this.stringRefsSize = Math.min(options.stringRefs(), Const.STRING_REFS_LIMIT);
+        this.stringRefs = stringRefsSize > 0 ? new LinkedHashMap<>(16, 0.75f, true) : null;
     }
 
     private Encoder initHeader() {
+        if (options.append() && indexEvery > 0) {
+            throw Err.error("an index cannot be written in the append mode");
+        }
+        if (options.append() && syncEvery > 0) {
+            throw Err.error("sync markers cannot be written in the append mode");
+        }
+        if (options.asyncWrite()) {
+            writer = new AsyncWriter(channel == null ? outputStream : Channels.newOutputStream(channel), buf.length);
+        }
         if (!options.append()) {
             encodeHeader(header);
         }
+        if (syncEvery > 0) {
+            encodeSync();
+        }
         return this;
     }
 
-    public void writeGap(final int len) {
-        try {
-            outputStream.write(new byte[len]);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write a gap of %s bytes", len);
+    // Send the buffered bytes to the stream and start over.
+    // In the async mode, the buffer goes to the writer thread,
+    // and the encoder goes on with the other one.
+    private void flushBuffer() {
+        if (pos > 0) {
+            if (writer != null) {
+                buf = writer.swap(buf, pos);
+                flushed += pos;
+            } else if (channel != null) {
+                writeChannel(ByteBuffer.wrap(buf, 0, pos));
+            } else {
+                try {
+                    outputStream.write(buf, 0, pos);
+                    flushed += pos;
+                } catch (IOException e) {
+                    throw Err.error(e, "could not write %s bytes into the stream", pos);
+                }
+            }
+            pos = 0;
         }
     }
 
-    public void writeInt(final int i) {
+    // Write the buffers to the channel in full. A gathering channel
+    // gets them all in one call.
+    private void writeChannel(final ByteBuffer... bbs) {
+        long left = 0;
+        for (final ByteBuffer bb: bbs) {
+            left += bb.remaining();
+        }
+        final long len = left;
         try {
-            outputStream.writeInt(i);
+            if (channel instanceof GatheringByteChannel gc) {
+                while (left > 0) {
+                    left -= gc.write(bbs);
+                }
+            } else {
+                for (final ByteBuffer bb: bbs) {
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                }
+            }
         } catch (IOException e) {
-            throw Err.error(e, "cannot write int: %s", i);
+            throw Err.error(e, "could not write %s bytes into the channel", len);
         }
+        flushed += len;
     }
 
-    public void writeOID(final short oid) {
-        try {
-            outputStream.writeShort(oid);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write OID: %s", oid);
+    // Make room for n bytes. Used for primitives only,
+    // so n never exceeds the buffer size.
+    private void ensure(final int n) {
+        if (buf.length - pos < n) {
+            if (frames > 0) {
+                grow(n);
+            } else {
+                flushBuffer();
+            }
         }
     }
 
-    public void writeShort(final short s) {
-        try {
-            outputStream.writeShort(s);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write short: %s", s);
+    // An open frame stays in the buffer until its length is known,
+    // so the buffer grows instead of being flushed.
+    private void grow(final int n) {
+        final long size = Math.max((long) buf.length * 2, (long) pos + n);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw Err.error("a framed value is too large: %s bytes", size);
+        }
+        buf = Arrays.copyOf(buf, (int) size);
+    }
+
+    public void writeGap(final int len) {
+        int left = len;
+        int n;
+        while (left > 0) {
+            ensure(1);
+            n = Math.min(left, buf.length - pos);
+            Arrays.fill(buf, pos, pos + n, (byte) 0);
+            pos += n;
+            left -= n;
         }
     }
 
+    public void writeInt(final int i) {
+        ensure(4);
+        VH_INT.set(buf, pos, i);
+        pos += 4;
+    }
+
+    public void writeOID(final short oid) {
+        ensure(2);
+        VH_SHORT.set(buf, pos, oid);
+        pos += 2;
+    }
+
+    public void writeShort(final short s) {
+        ensure(2);
+        VH_SHORT.set(buf, pos, s);
+        pos += 2;
+    }
+
     public void writeLong(final long l) {
-        try {
-            outputStream.writeLong(l);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write long: %s", l);
+        ensure(8);
+        VH_LONG.set(buf, pos, l);
+        pos += 8;
+    }
+
+    // Unsigned LEB128: seven bits per byte, the high bit
+    // means there are more bytes to come.
+    private void writeUVarLong(long l) {
+        ensure(10);
+        while ((l & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((l & 0x7F) | 0x80);
+            l >>>= 7;
+        }
+        buf[pos++] = (byte) l;
+    }
+
+    // A signed number in the zigzag encoding so small
+    // negative numbers take a few bytes as well.
+    public void writeVarLong(final long l) {
+        writeUVarLong((l << 1) ^ (l >> 63));
+    }
+
+    // Lengths and counters: a varint since version 2,
+    // a fixed 4-byte integer before.
+    public void writeLength(final int len) {
+        if (varInts) {
+            writeUVarLong(len);
+        } else {
+            writeInt(len);
         }
     }
 
     @SuppressWarnings("unused")
     public void writeFloat(final float f) {
-        try {
-            outputStream.writeFloat(f);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write float: %s", f);
-        }
+        writeInt(Float.floatToIntBits(f));
     }
 
     @SuppressWarnings("unused")
     public void writeDouble(final double d) {
-        try {
-            outputStream.writeDouble(d);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write double: %s", d);
-        }
+        writeLong(Double.doubleToLongBits(d));
     }
 
     public void writeByte(final byte b) {
-        try {
-            outputStream.writeByte(b);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write byte: %s", b);
-        }
+        ensure(1);
+        buf[pos++] = b;
     }
 
     public void writeCharacter(final char c) {
-        try {
-            outputStream.writeChar(c);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write char: %s", c);
+        ensure(2);
+        VH_CHAR.set(buf, pos, c);
+        pos += 2;
+    }
+
+    // Write bytes with no length prefix. Large arrays skip
+    // the buffer and go to the stream directly.
+    public void writeRaw(final byte[] bytes, final int off, final int len) {
+        if (len <= buf.length - pos) {
+            System.arraycopy(bytes, off, buf, pos, len);
+            pos += len;
+        } else if (frames > 0) {
+            grow(len);
+            System.arraycopy(bytes, off, buf, pos, len);
+            pos += len;
+        } else if (channel != null && writer == null) {
+            writeChannel(ByteBuffer.wrap(buf, 0, pos), ByteBuffer.wrap(bytes, off, len));
+            pos = 0;
+        } else {
+            flushBuffer();
+            if (len < buf.length) {
+                System.arraycopy(bytes, off, buf, 0, len);
+                pos = len;
+            } else if (writer != null) {
+                // the array may change once the call returns,
+                // so it gets copied buffer by buffer
+                int n;
+                for (int i = 0; i < len; i += n) {
+                    n = Math.min(len - i, buf.length);
+                    System.arraycopy(bytes, off + i, buf, 0, n);
+                    pos = n;
+                    flushBuffer();
+                }
+            } else {
+                try {
+                    outputStream.write(bytes, off, len);
+                    flushed += len;
+                } catch (IOException e) {
+                    throw Err.error(e, "could not write bytes, length: %s, off: %s, len: %s",
+                            bytes.length, off, len
+                    );
+                }
+            }
         }
     }
 
-    public void writeBytes(final byte[] bytes) {
-        writeInt(bytes.length);
-        try {
-            outputStream.write(bytes);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write bytes, length: %s", bytes.length);
+    // Write the remaining bytes of a buffer with no length prefix.
+    // The position of the buffer moves to the limit.
+    public void writeRaw(final ByteBuffer bb) {
+        if (bb.hasArray()) {
+            writeRaw(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+            bb.position(bb.limit());
+        } else if (bb.remaining() > buf.length - pos && frames == 0 && channel != null && writer == null) {
+            writeChannel(ByteBuffer.wrap(buf, 0, pos), bb);
+            pos = 0;
+        } else {
+            int n;
+            while (bb.hasRemaining()) {
+                ensure(1);
+                n = Math.min(bb.remaining(), buf.length - pos);
+                bb.get(buf, pos, n);
+                pos += n;
+            }
         }
     }
 
+    public void writeBytes(final byte[] bytes) {
+        writeLength(bytes.length);
+        writeRaw(bytes, 0, bytes.length);
+    }
+
     public void writeBytes(final byte[] bytes, final int off, final int len) {
-        writeInt(len);
-        try {
-            outputStream.write(bytes, off, len);
-        } catch (IOException e) {
-            throw Err.error(e, "could not write bytes, length: %s, off: %s, len: %s",
-                    bytes.length, off, len
-            );
-        }
+        writeLength(len);
+        writeRaw(bytes, off, len);
     }
 
     public void writeString(final String s) {
@@ -150,11 +500,7 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void writeBoolean(final boolean b) {
-        try {
-            outputStream.writeBoolean(b);
-        } catch (IOException e) {
-            throw Err.error(e, "cannot write bool: %s", b);
-        }
+        writeByte(b ? (byte) 1 : (byte) 0);
     }
 
     public void writeBigInteger(final BigInteger bi) {
@@ -179,7 +525,11 @@ public final class Encoder implements AutoCloseable {
             case 1 -> writeOID(OID.INT_ONE);
             default -> {
                 writeOID(OID.INT);
-                writeInt(i);
+                if (varInts) {
+                    writeVarLong(i);
+                } else {
+                    writeInt(i);
+                }
             }
         }
     }
@@ -194,7 +544,11 @@ public final class Encoder implements AutoCloseable {
             writeOID(OID.LONG_ONE);
         } else {
             writeOID(OID.LONG);
-            writeLong(l);
+            if (varInts) {
+                writeVarLong(l);
+            } else {
+                writeLong(l);
+            }
         }
     }
 
@@ -247,20 +601,24 @@ public final class Encoder implements AutoCloseable {
             case 1 -> writeOID(OID.SHORT_ONE);
             default -> {
                 writeOID(OID.SHORT);
-                writeShort(s);
+                if (varInts) {
+                    writeVarLong(s);
+                } else {
+                    writeShort(s);
+                }
             }
         }
     }
 
     private void encodeChunk(final Object[] chunk) {
-        writeInt(chunk.length);
+        writeLength(chunk.length);
         for (final Object x: chunk) {
             encode(x);
         }
     }
 
     private void encodeChunk(final Object[] chunk, final int pos) {
-        writeInt(pos);
+        writeLength(pos);
         for (int i = 0; i < pos; i++) {
             encode(chunk[i]);
         }
@@ -270,11 +628,36 @@ public final class Encoder implements AutoCloseable {
     public void encodeString(final String s) {
         if (s.isEmpty()) {
             writeOID(OID.STRING_EMPTY);
+        } else if (stringRefs != null && s.length() <= Const.STRING_REFS_MAX_LENGTH) {
+            encodeStringRef(s);
         } else {
             encodeAsString(OID.STRING, s);
         }
     }
 
+    // A table of recent strings in access order. When it's full,
+    // the least recently used string gives its id to a new one;
+    // the decoder just overrides the value under that id.
+    private void encodeStringRef(final String s) {
+        final Integer id = stringRefs.get(s);
+        if (id != null) {
+            writeOID(OID.STRING_REF);
+            writeLength(id);
+            return;
+        }
+        int newId = stringRefs.size();
+        if (newId >= stringRefsSize) {
+            final Iterator<Integer> iter = stringRefs.values().iterator();
+            newId = iter.next();
+            iter.remove();
+        }
+        stringRefs.put(s, newId);
+        refDefs++;
+        writeOID(OID.STRING_DEF);
+        writeLength(newId);
+        writeString(s);
+    }
+
     public void encodeAsString(final short oid, final String s) {
         writeOID(oid);
         writeString(s);
@@ -305,72 +688,102 @@ public final class Encoder implements AutoCloseable {
     @SuppressWarnings("unused")
     public void encodeObjectArray(final Object[] array) {
         writeOID(OID.ARR_OBJ);
-        writeInt(array.length);
+        writeLength(array.length);
         for (final Object x: array) {
             encode(x);
         }
     }
 
+    // Primitive arrays go through a ByteBuffer view over the
+    // free part of the buffer, chunk by chunk. Returns the
+    // number of items of the given size that fit the buffer.
+    private int arrayChunk(final int size, final int left) {
+        ensure(size);
+        return Math.min(left, (buf.length - pos) / size);
+    }
+
+    private ByteBuffer arrayView(final int len) {
+        final ByteBuffer bb = ByteBuffer.wrap(buf, pos, len).order(arrayOrder);
+        pos += len;
+        return bb;
+    }
+
     @SuppressWarnings("unused")
     public void encodeIntArray(final int[] array) {
         writeOID(OID.ARR_INT);
-        writeInt(array.length);
-        for (final int i: array) {
-            writeInt(i);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(4, array.length - off);
+            arrayView(n * 4).asIntBuffer().put(array, off, n);
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeShortArray(final short[] array) {
         writeOID(OID.ARR_SHORT);
-        writeInt(array.length);
-        for (final short s: array) {
-            writeShort(s);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(2, array.length - off);
+            arrayView(n * 2).asShortBuffer().put(array, off, n);
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeBoolArray(final boolean[] array) {
         writeOID(OID.ARR_BOOL);
-        writeInt(array.length);
-        for (final boolean b: array) {
-            writeBoolean(b);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(1, array.length - off);
+            for (int i = off; i < off + n; i++) {
+                buf[pos++] = array[i] ? (byte) 1 : (byte) 0;
+            }
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeFloatArray(final float[] array) {
         writeOID(OID.ARR_FLOAT);
-        writeInt(array.length);
-        for (final float f: array) {
-            writeFloat(f);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(4, array.length - off);
+            arrayView(n * 4).asFloatBuffer().put(array, off, n);
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeDoubleArray(final double[] array) {
         writeOID(OID.ARR_DOUBLE);
-        writeInt(array.length);
-        for (final double d: array) {
-            writeDouble(d);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(8, array.length - off);
+            arrayView(n * 8).asDoubleBuffer().put(array, off, n);
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeCharArray(final char[] array) {
         writeOID(OID.ARR_CHAR);
-        writeInt(array.length);
-        for (final char c: array) {
-            writeCharacter(c);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(2, array.length - off);
+            arrayView(n * 2).asCharBuffer().put(array, off, n);
         }
     }
 
     @SuppressWarnings("unused")
     public void encodeLongArray(final long[] array) {
         writeOID(OID.ARR_LONG);
-        writeInt(array.length);
-        for (final long l: array) {
-            writeLong(l);
+        writeLength(array.length);
+        int n;
+        for (int off = 0; off < array.length; off += n) {
+            n = arrayChunk(8, array.length - off);
+            arrayView(n * 8).asLongBuffer().put(array, off, n);
         }
     }
 
@@ -397,7 +810,7 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void writeCountable(final int len, final Iterable<?> iterable) {
-        writeInt(len);
+        writeLength(len);
         for (final Object x : iterable) {
             encode(x);
         }
@@ -429,14 +842,122 @@ public final class Encoder implements AutoCloseable {
         return n;
     }
 
+    // Like encodeMulti, but batches of values are encoded on the pool,
+    // each one into a buffer of its own, and the buffers are written
+    // in the original order. At most window batches are in flight, and
+    // their buffers are reused. Back references, the index and sync
+    // blocks need a single pass over the values, so they are refused.
+    @SuppressWarnings("unused")
+    public long encodeParallel(final Iterable<?> xs,
+                               final ExecutorService pool,
+                               final int batchSize,
+                               final int window) {
+        if (identRefs != null || stringRefs != null) {
+            throw Err.error("keyword and string references cannot be used with parallel encoding");
+        }
+        if (indexEvery > 0 || syncEvery > 0) {
+            throw Err.error("an index and sync markers cannot be used with parallel encoding");
+        }
+        if (batchSize < 1 || window < 1) {
+            throw Err.error("wrong batch size or window: %s, %s", batchSize, window);
+        }
+        final int limit = options.uncountableMaxItems();
+        final ConcurrentLinkedQueue<Encoder> free = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<Future<Encoder>> inFlight = new ArrayDeque<>(window);
+        final Iterator<?> iter = xs.iterator();
+        long n = 0;
+        try {
+            while (iter.hasNext() && n < limit) {
+                final Object[] batch = new Object[(int) Math.min(batchSize, limit - n)];
+                int len = 0;
+                while (len < batch.length && iter.hasNext()) {
+                    batch[len++] = iter.next();
+                }
+                n += len;
+                final int count = len;
+                if (inFlight.size() == window) {
+                    writeBatch(inFlight.poll(), free);
+                }
+                inFlight.add(pool.submit(() -> encodeBatch(free.poll(), batch, count)));
+            }
+            while (!inFlight.isEmpty()) {
+                writeBatch(inFlight.poll(), free);
+            }
+        } finally {
+            for (final Future<Encoder> f: inFlight) {
+                f.cancel(true);
+            }
+        }
+        return n;
+    }
+
+    // A batch goes into a buffer that grows as needed and is never
+    // flushed, as if it were one open frame.
+    private Encoder encodeBatch(final Encoder reused, final Object[] batch, final int len) {
+        final Encoder worker;
+        if (reused == null) {
+            worker = new Encoder(protoEncode, null, null, options);
+            worker.frames = 1;
+        } else {
+            worker = reused;
+            worker.pos = 0;
+        }
+        for (int i = 0; i < len; i++) {
+            worker.encode(batch[i]);
+        }
+        return worker;
+    }
+
+    private void writeBatch(final Future<Encoder> future, final Queue<Encoder> free) {
+        final Encoder worker;
+        try {
+            worker = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Err.error(e, "interrupted while encoding");
+        } catch (ExecutionException e) {
+            throw Err.error(e.getCause(), "could not encode a batch");
+        }
+        writeRaw(worker.buf, 0, worker.pos);
+        free.add(worker);
+    }
+
     @SuppressWarnings("unused")
     public void encodeKeyword(final Keyword kw) {
-        encodeAsString(OID.CLJ_KEYWORD, kw.toString().substring(1));
+        if (identRefs == null || !encodeIdentRef(kw, OID.CLJ_KEYWORD_DEF, kw.sym)) {
+            encodeAsString(OID.CLJ_KEYWORD, kw.sym.toString());
+        }
     }
 
     @SuppressWarnings("unused")
     public void encodeSymbol(final Symbol s) {
-        encodeAsString(OID.CLJ_SYMBOL, s.toString());
+        if (identRefs == null || !encodeIdentRef(s, OID.CLJ_SYMBOL_DEF, s)) {
+            encodeAsString(OID.CLJ_SYMBOL, s.toString());
+        }
+    }
+
+    // The first occurrence of a keyword or a symbol is written
+    // with its id; the next ones are just references to that id.
+    // Ids are explicit so an appending encoder that starts from
+    // zero again overrides the previous ones. Returns false when
+    // the table is full and the value should be written as usual.
+    private boolean encodeIdentRef(final Object x, final short defOID, final Symbol sym) {
+        final Integer id = identRefs.get(x);
+        if (id != null) {
+            writeOID(OID.CLJ_IDENT_REF);
+            writeLength(id);
+            return true;
+        }
+        final int size = identRefs.size();
+        if (size >= Const.IDENT_REFS_LIMIT) {
+            return false;
+        }
+        identRefs.put(x, size);
+        refDefs++;
+        writeOID(defOID);
+        writeLength(size);
+        writeString(sym.toString());
+        return true;
     }
 
     @SuppressWarnings("unused")
@@ -604,7 +1125,7 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void writeMap(final Map<?,?> m) {
-        writeInt(m.size());
+        writeLength(m.size());
         for (final Map.Entry<?,?> e: m.entrySet()) {
             encode(e.getKey());
             encode(e.getValue());
@@ -634,7 +1155,7 @@ public final class Encoder implements AutoCloseable {
     public void encodeITransientVector(final ITransientVector trVec) {
         final int len = trVec.count();
         writeOID(OID.CLJ_TR_VEC);
-        writeInt(len);
+        writeLength(len);
         for (int i = 0; i < len; i++) {
             encode(trVec.nth(i));
         }
@@ -642,13 +1163,18 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void encodeByteBuffer(final ByteBuffer bb) {
-        final byte[] array = bb.array();
         final int position = bb.position();
         final int limit = bb.limit();
         writeOID(OID.IO_BYTEBUFFER);
         writeInt(position);
         writeInt(limit);
-        writeBytes(array);
+        if (bb.hasArray()) {
+            writeBytes(bb.array());
+        } else {
+            // direct and read-only buffers have no array to take
+            writeLength(bb.capacity());
+            writeRaw(bb.duplicate().clear());
+        }
     }
 
     @SuppressWarnings("unused")
@@ -700,9 +1226,26 @@ public final class Encoder implements AutoCloseable {
         }
     }
 
+    @SuppressWarnings("unused")
+    public static void registerComparator(final Class<?> type) {
+        COMPARATORS.add(type);
+    }
+
+    // A custom comparator is written only when its class has been
+    // registered. Anything else, e.g. a plain fn, would fail or become
+    // an unsupported blob, so such a collection is written as if it
+    // were sorted by default.
+    private static boolean isEncodableComparator(final Comparator<?> c) {
+        return c != RT.DEFAULT_COMPARATOR && COMPARATORS.contains(c.getClass());
+    }
+
     @SuppressWarnings("unused")
     public void encodeSortedSet(final PersistentTreeSet s) {
-        if (s.isEmpty()) {
+        if (isEncodableComparator(s.comparator())) {
+            writeOID(OID.CLJ_SORTED_SET_BY);
+            encode(s.comparator());
+            writeCountable(s.count(), s);
+        } else if (s.isEmpty()) {
             writeOID(OID.CLJ_SORTED_SET_EMPTY);
         } else {
             encodeCountable(OID.CLJ_SORTED_SET, s.count(), s);
@@ -711,7 +1254,11 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void encodeSortedMap(final PersistentTreeMap s) {
-        if (s.count() == 0) {
+        if (isEncodableComparator(s.comparator())) {
+            writeOID(OID.CLJ_SORTED_MAP_BY);
+            encode(s.comparator());
+            writeMap(s);
+        } else if (s.count() == 0) {
             writeOID(OID.CLJ_SORTED_MAP_EMPTY);
         } else {
             encodeAsMap(OID.CLJ_SORTED_MAP, s);
@@ -783,7 +1330,7 @@ public final class Encoder implements AutoCloseable {
             writeString(message);
         }
 
-        writeInt(trace.length);
+        writeLength(trace.length);
         for (StackTraceElement element: trace) {
             writeStackTraceElement(element);
         }
@@ -795,7 +1342,7 @@ public final class Encoder implements AutoCloseable {
             encode(cause);
         }
 
-        writeInt(suppressed.length);
+        writeLength(suppressed.length);
         for (Throwable s: suppressed) {
             encode(s);
         }
@@ -870,7 +1417,8 @@ public final class Encoder implements AutoCloseable {
     public void encodeHeader(final Header header) {
         writeOID(OID.HEADER);
         writeShort(header.version());
-        writeGap(Const.HEADER_GAP);
+        writeShort(header.flags());
+        writeGap(Const.HEADER_GAP - 2);
     }
 
     private static APersistentMap getMeta(final Object x) {
@@ -887,6 +1435,76 @@ public final class Encoder implements AutoCloseable {
     }
 
     public void encode(final Object x) {
+        if (indexEvery > 0 || syncEvery > 0) {
+            encodeIndexed(x);
+        } else {
+            encodeItem(x);
+        }
+    }
+
+    // Top-level values are counted, and the offset of every n-th one
+    // goes to the index. Sync blocks go between top-level values too.
+    // Back references start over at both, so the decoder can start
+    // there with empty tables.
+    private void encodeIndexed(final Object x) {
+        if (level == 0) {
+            if (syncEvery > 0 && flushed + pos - lastSync >= syncEvery) {
+                encodeSync();
+            }
+            if (indexEvery > 0 && items % indexEvery == 0) {
+                if (offsetCount == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsetCount * 2);
+                }
+                offsets[offsetCount++] = flushed + pos;
+                resetRefs();
+            }
+            items++;
+        }
+        level++;
+        try {
+            encodeItem(x);
+        } finally {
+            level--;
+        }
+    }
+
+    private void resetRefs() {
+        if (identRefs != null) {
+            identRefs.clear();
+        }
+        if (stringRefs != null) {
+            stringRefs.clear();
+        }
+    }
+
+    // A sync block: the SYNC OID, a 16-byte marker random for each dump,
+    // and the number of top-level values written before it. A reader
+    // can start at any offset and look for the next marker.
+    private void encodeSync() {
+        lastSync = flushed + pos;
+        writeOID(OID.SYNC);
+        writeLong(syncMarker.getMostSignificantBits());
+        writeLong(syncMarker.getLeastSignificantBits());
+        writeLong(items);
+        resetRefs();
+    }
+
+    // The index footer: the INDEX OID, the step, the number of items,
+    // the number of offsets, the offsets, and the offset of the footer
+    // itself in the last 8 bytes, all fixed-size.
+    private void encodeIndex() {
+        final long start = flushed + pos;
+        writeOID(OID.INDEX);
+        writeInt(indexEvery);
+        writeLong(items);
+        writeInt(offsetCount);
+        for (int i = 0; i < offsetCount; i++) {
+            writeLong(offsets[i]);
+        }
+        writeLong(start);
+    }
+
+    private void encodeItem(final Object x) {
         if (options.saveMeta()) {
             final APersistentMap meta = getMeta(x);
             if (meta != null) {
@@ -894,7 +1512,87 @@ public final class Encoder implements AutoCloseable {
                 encode(meta);
             }
         }
-        protoEncode.invoke(x, this);
+        if (x == null) {
+            encodeNULL();
+            return;
+        }
+        if (framed && COMPOSITE.get(x.getClass())) {
+            encodeFramed(x);
+        } else {
+            encodeValue(x);
+        }
+    }
+
+    // A frame is the FRAME OID, the length of the value in bytes,
+    // and the value itself. A frame that defines back references
+    // gets the FRAME_REFS OID, as skipping it would lose them.
+    private void encodeFramed(final Object x) {
+        ensure(6);
+        frames++;
+        final int start = pos;
+        final int defs = refDefs;
+        writeOID(OID.FRAME);
+        pos += 4;
+        try {
+            encodeValue(x);
+        } finally {
+            frames--;
+        }
+        VH_INT.set(buf, start + 2, pos - start - 6);
+        if (refDefs != defs) {
+            VH_SHORT.set(buf, start, OID.FRAME_REFS);
+        }
+    }
+
+    private void encodeValue(final Object x) {
+        final Builtin type = TYPES.get(x.getClass());
+        if (type == null) {
+            protoEncode.invoke(x, this);
+            return;
+        }
+        switch (type) {
+            case LONG -> encodeLong((Long) x);
+            case INTEGER -> encodeInteger((Integer) x);
+            case SHORT -> encodeShort((Short) x);
+            case BYTE -> encodeByte((Byte) x);
+            case DOUBLE -> encodeDouble((Double) x);
+            case FLOAT -> encodeFloat((Float) x);
+            case BOOLEAN -> encodeBoolean((Boolean) x);
+            case CHARACTER -> encodeCharacter((Character) x);
+            case STRING -> encodeString((String) x);
+            case KEYWORD -> encodeKeyword((Keyword) x);
+            case SYMBOL -> encodeSymbol((Symbol) x);
+            case BIG_INT -> encodeBigInt((BigInt) x);
+            case BIG_INTEGER -> encodeBigInteger((BigInteger) x);
+            case BIG_DECIMAL -> encodeBigDecimal((BigDecimal) x);
+            case RATIO -> encodeRatio((Ratio) x);
+            case UUID -> encodeUUID((UUID) x);
+            case VECTOR -> encodeAPersistentVector((APersistentVector) x);
+            case ARRAY_MAP -> encodeAPersistentMap((APersistentMap) x);
+            case HASH_MAP -> encodeAPersistentMap((APersistentMap) x);
+            case HASH_SET -> encodeAPersistentSet((APersistentSet) x);
+            case SORTED_MAP -> encodeSortedMap((PersistentTreeMap) x);
+            case SORTED_SET -> encodeSortedSet((PersistentTreeSet) x);
+            case LIST -> encodeClojureList((PersistentList) x);
+            case EMPTY_LIST -> encodeClojureEmptyList(x);
+            case QUEUE -> encodeClojureQueue((PersistentQueue) x);
+            case MAP_ENTRY -> encodeClojureMapEntry((MapEntry) x);
+            case LAZY_SEQ -> encodeLazySeq((LazySeq) x);
+            case CONS -> encodeClojureSeq((ASeq) x);
+            case INSTANT -> encodeInstant((Instant) x);
+            case LOCAL_DATE -> encodeLocalDate((LocalDate) x);
+            case LOCAL_DATE_TIME -> encodeLocalDateTime((LocalDateTime) x);
+            case UTIL_DATE -> encodeUtilDate((java.util.Date) x);
+            case BYTE_ARRAY -> encodeByteArray((byte[]) x);
+            case SHORT_ARRAY -> encodeShortArray((short[]) x);
+            case INT_ARRAY -> encodeIntArray((int[]) x);
+            case LONG_ARRAY -> encodeLongArray((long[]) x);
+            case FLOAT_ARRAY -> encodeFloatArray((float[]) x);
+            case DOUBLE_ARRAY -> encodeDoubleArray((double[]) x);
+            case BOOL_ARRAY -> encodeBoolArray((boolean[]) x);
+            case CHAR_ARRAY -> encodeCharArray((char[]) x);
+            case OBJECT_ARRAY -> encodeObjectArray((Object[]) x);
+        }
     }
 
     public void encodeUncountable(final short oid, final Iterator<?> iterator) {
@@ -921,7 +1619,7 @@ public final class Encoder implements AutoCloseable {
         if (pos > 0) {
             encodeChunk(chunk, pos);
         }
-        writeInt(0);
+        writeLength(0);
     }
 
     @SuppressWarnings("unused")
@@ -950,7 +1648,7 @@ public final class Encoder implements AutoCloseable {
         if (off > 0) {
             writeBytes(buf, 0, off);
         }
-        writeInt(0);
+        writeLength(0);
     }
 
     @SuppressWarnings("unused")
@@ -973,6 +1671,14 @@ public final class Encoder implements AutoCloseable {
 
     @SuppressWarnings("unused")
     public void flush() {
+        flushBuffer();
+        if (writer != null) {
+            writer.await();
+        }
+        if (outputStream == null) {
+            // channels have nothing to flush
+            return;
+        }
         try {
             outputStream.flush();
         } catch (IOException e) {
@@ -983,9 +1689,26 @@ public final class Encoder implements AutoCloseable {
     @Override
     public void close() {
         try {
-            outputStream.close();
-        } catch (IOException e) {
-            throw Err.error(e, "could not close the stream");
+            if (indexEvery > 0) {
+                encodeIndex();
+            }
+            flushBuffer();
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } finally {
+                try {
+                    if (channel == null) {
+                        outputStream.close();
+                    } else {
+                        channel.close();
+                    }
+                } catch (IOException e) {
+                    throw Err.error(e, "could not close the stream");
+                }
+            }
         }
     }
 }
@@ -1,6 +1,7 @@
 package deed;
 
 import java.io.*;
+import java.nio.file.Path;
 
 public class FileOutStream extends OutputStream {
 
@@ -25,6 +26,16 @@ public class FileOutStream extends OutputStream {
         return new FileOutStream(IOTool.tempFile());
     }
 
+    public static FileOutStream ofTemp(final Path dir) {
+        final File file = IOTool.tempFile(dir);
+        try {
+            return new FileOutStream(file);
+        } catch (RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
     public File file() {
         return file;
     }
@@ -33,4 +44,14 @@ public class FileOutStream extends OutputStream {
     public void write(final int b) throws IOException {
         this.outputStream.write(b);
     }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        this.outputStream.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.outputStream.close();
+    }
 }
@@ -1,7 +1,13 @@
 package deed;
 
-public record Header(short version) {
+public record Header(short version, short flags) {
     public static Header of(short version) {
-        return new Header(version);
+        return new Header(version, (short) 0);
+    }
+    public static Header of(short version, short flags) {
+        return new Header(version, flags);
+    }
+    public boolean hasFlag(final short flag) {
+        return (flags & flag) != 0;
     }
 }
@@ -1,6 +1,8 @@
 package deed;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -14,6 +16,23 @@ public class IOTool {
         }
     }
 
+    // A temp file in the given directory (the default one when null).
+    // The caller deletes it: deleteOnExit would keep every path in
+    // memory until the JVM exits.
+    public static File tempFile(final Path dir) {
+        final File file;
+        try {
+            if (dir == null) {
+                file = Files.createTempFile("deed", ".tmp").toFile();
+            } else {
+                file = Files.createTempFile(dir, "deed", ".tmp").toFile();
+            }
+        } catch (IOException e) {
+            throw Err.error(e, "cannot create a temp file in %s", dir);
+        }
+        return file;
+    }
+
     public static ByteArrayInputStream byteArrayInputStream(final ByteArrayOutputStream ba) {
         return new ByteArrayInputStream(ba.toByteArray());
     }
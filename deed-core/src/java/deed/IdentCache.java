@@ -0,0 +1,67 @@
+package deed;
+
+import java.util.Arrays;
+
+// A small direct-mapped cache of keywords or symbols keyed on their
+// UTF-8 bytes. A hit resolves a value right from the read buffer
+// without building a string or interning it again. A new key
+// replaces whatever was in its slot. The table starts small, so
+// a decoder of a short message pays little for it, and doubles
+// once the misses outnumber half of the slots, up to a fixed limit.
+final class IdentCache {
+
+    private static final int MIN_SIZE = 32;
+    private static final int MAX_SIZE = 4096;
+    private static final int MAX_KEY_LENGTH = 128;
+
+    private byte[][] keys = new byte[MIN_SIZE][];
+    private Object[] values = new Object[MIN_SIZE];
+    private int misses = 0;
+
+    static boolean fits(final int len) {
+        return len <= MAX_KEY_LENGTH;
+    }
+
+    private static int hash(final byte[] buf, final int off, final int len) {
+        int h = len;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + buf[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    Object get(final byte[] buf, final int off, final int len) {
+        final int i = hash(buf, off, len) & (keys.length - 1);
+        final byte[] key = keys[i];
+        if (key != null && Arrays.equals(key, 0, key.length, buf, off, off + len)) {
+            return values[i];
+        }
+        return null;
+    }
+
+    void put(final byte[] buf, final int off, final int len, final Object value) {
+        if (++misses > keys.length / 2 && keys.length < MAX_SIZE) {
+            grow();
+        }
+        final int i = hash(buf, off, len) & (keys.length - 1);
+        keys[i] = Arrays.copyOfRange(buf, off, off + len);
+        values[i] = value;
+    }
+
+    private void grow() {
+        final byte[][] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new byte[oldKeys.length * 2][];
+        values = new Object[oldKeys.length * 2];
+        misses = 0;
+        byte[] key;
+        for (int i = 0; i < oldKeys.length; i++) {
+            key = oldKeys[i];
+            if (key != null) {
+                final int j = hash(key, 0, key.length) & (keys.length - 1);
+                keys[j] = key;
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package deed;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// The LZ4 block format: a fast greedy compressor with a hash table
+// of 4-byte sequences, and a decompressor that checks every length
+// and offset against the bounds of the block.
+final class LZ4Codec implements Codec {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final VarHandle VH_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    @Override
+    public short id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "lz4";
+    }
+
+    @Override
+    public int maxCompressedLength(final int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int hash(final int i) {
+        return (i * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(final byte[] dst, int dp, int len) {
+        while (len >= 0xFF) {
+            dst[dp++] = (byte) 0xFF;
+            len -= 0xFF;
+        }
+        dst[dp++] = (byte) len;
+        return dp;
+    }
+
+    @Override
+    public int compress(final byte[] src, final int srcOff, final int len, final byte[] dst, final int dstOff) {
+        final int end = srcOff + len;
+        final int mfLimit = end - MF_LIMIT;
+        final int matchLimit = end - LAST_LITERALS;
+        int anchor = srcOff;
+        int dp = dstOff;
+
+        if (len > MF_LIMIT) {
+            final int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            table[hash((int) VH_INT.get(src, srcOff))] = srcOff;
+            int ip = srcOff + 1;
+            int ref;
+            int h;
+            int searches;
+            int matchLen;
+            int litLen;
+            int token;
+
+            main:
+            while (ip < mfLimit) {
+                // look for a match, stepping faster over data
+                // that doesn't compress
+                searches = 1 << SKIP_TRIGGER;
+                while (true) {
+                    h = hash((int) VH_INT.get(src, ip));
+                    ref = table[h];
+                    table[h] = ip;
+                    if (ref >= 0
+                            && ip - ref <= MAX_DISTANCE
+                            && (int) VH_INT.get(src, ref) == (int) VH_INT.get(src, ip)) {
+                        break;
+                    }
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    if (ip >= mfLimit) {
+                        break main;
+                    }
+                }
+
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen]) {
+                    matchLen++;
+                }
+
+                litLen = ip - anchor;
+                final int tokenPos = dp++;
+                if (litLen >= 15) {
+                    token = 15 << 4;
+                    dp = writeLength(dst, dp, litLen - 15);
+                } else {
+                    token = litLen << 4;
+                }
+                System.arraycopy(src, anchor, dst, dp, litLen);
+                dp += litLen;
+
+                dst[dp++] = (byte) (ip - ref);
+                dst[dp++] = (byte) ((ip - ref) >>> 8);
+
+                if (matchLen - MIN_MATCH >= 15) {
+                    token |= 15;
+                    dp = writeLength(dst, dp, matchLen - MIN_MATCH - 15);
+                } else {
+                    token |= matchLen - MIN_MATCH;
+                }
+                dst[tokenPos] = (byte) token;
+
+                ip += matchLen;
+                anchor = ip;
+                if (ip < mfLimit) {
+                    table[hash((int) VH_INT.get(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+
+        final int litLen = end - anchor;
+        if (litLen >= 15) {
+            dst[dp++] = (byte) (15 << 4);
+            dp = writeLength(dst, dp, litLen - 15);
+        } else {
+            dst[dp++] = (byte) (litLen << 4);
+        }
+        System.arraycopy(src, anchor, dst, dp, litLen);
+        dp += litLen;
+        return dp - dstOff;
+    }
+
+    private static RuntimeException corrupted(final int sp) {
+        return Err.error("a corrupted LZ4 block at byte %s", sp);
+    }
+
+    @Override
+    public void decompress(final byte[] src,
+                           final int srcOff,
+                           final int srcLen,
+                           final byte[] dst,
+                           final int dstOff,
+                           final int dstLen) {
+        final int srcEnd = srcOff + srcLen;
+        final int dstEnd = dstOff + dstLen;
+        int sp = srcOff;
+        int dp = dstOff;
+        int token;
+        int len;
+        int b;
+        int offset;
+
+        while (sp < srcEnd) {
+            token = src[sp++] & 0xFF;
+
+            len = token >>> 4;
+            if (len == 15) {
+                do {
+                    if (sp == srcEnd) {
+                        throw corrupted(sp);
+                    }
+                    b = src[sp++] & 0xFF;
+                    len += b;
+                } while (b == 0xFF);
+            }
+            if (len > srcEnd - sp || len > dstEnd - dp) {
+                throw corrupted(sp);
+            }
+            System.arraycopy(src, sp, dst, dp, len);
+            sp += len;
+            dp += len;
+
+            // the last sequence has literals only
+            if (sp == srcEnd) {
+                break;
+            }
+
+            if (srcEnd - sp < 2) {
+                throw corrupted(sp);
+            }
+            offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+            sp += 2;
+            if (offset == 0 || offset > dp - dstOff) {
+                throw corrupted(sp);
+            }
+
+            len = token & 15;
+            if (len == 15) {
+                do {
+                    if (sp == srcEnd) {
+                        throw corrupted(sp);
+                    }
+                    b = src[sp++] & 0xFF;
+                    len += b;
+                } while (b == 0xFF);
+            }
+            len += MIN_MATCH;
+            if (len > dstEnd - dp) {
+                throw corrupted(sp);
+            }
+            if (offset >= len) {
+                System.arraycopy(dst, dp - offset, dst, dp, len);
+            } else {
+                // an overlapping match repeats the last offset bytes
+                for (int i = 0; i < len; i++) {
+                    dst[dp + i] = dst[dp - offset + i];
+                }
+            }
+            dp += len;
+        }
+
+        if (dp != dstEnd) {
+            throw Err.error("a corrupted LZ4 block: %s bytes expected, %s decoded", dstLen, dp - dstOff);
+        }
+    }
+}
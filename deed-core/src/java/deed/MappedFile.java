@@ -0,0 +1,80 @@
+package deed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A file mapped into memory window by window. A single mapping cannot
+// exceed 2GB, so larger files are walked through several ones.
+final class MappedFile implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private long offset = 0;
+
+    MappedFile(final Path path, final long windowSize) {
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+        } catch (IOException e) {
+            throw Err.error(e, "could not open a file: %s", path);
+        }
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+    }
+
+    // Map the next window or return null when the file is over.
+    MappedByteBuffer next() {
+        if (offset >= size) {
+            return null;
+        }
+        final long len = Math.min(windowSize, size - offset);
+        final MappedByteBuffer bb;
+        try {
+            bb = channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+        } catch (IOException e) {
+            throw Err.error(e, "could not map a file, offset: %s, length: %s", offset, len);
+        }
+        offset += len;
+        return bb;
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Continue from the given offset: map a window starting there.
+    MappedByteBuffer seek(final long offset) {
+        this.offset = offset;
+        return next();
+    }
+
+    // A positioned read that doesn't affect the mapped windows.
+    ByteBuffer read(final long offset, final int len) {
+        final ByteBuffer bb = ByteBuffer.allocate(len);
+        int r;
+        try {
+            while (bb.hasRemaining()) {
+                r = channel.read(bb, offset + bb.position());
+                if (r == -1) {
+                    throw Err.error("unexpected end of file, offset: %s, length: %s", offset, len);
+                }
+            }
+        } catch (IOException e) {
+            throw Err.error(e, "could not read a file, offset: %s, length: %s", offset, len);
+        }
+        return bb.flip();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw Err.error(e, "could not close a file channel");
+        }
+    }
+}
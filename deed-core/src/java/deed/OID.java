@@ -112,4 +112,16 @@ public class OID {
     public static final short CLJ_BIG_INT               = 0x0068;
     public static final short CLJ_RATIO                 = 0x0069;
     public static final short VECTORZ_AVECTOR           = 0x006A;
+    public static final short CLJ_KEYWORD_DEF           = 0x006B;
+    public static final short CLJ_SYMBOL_DEF            = 0x006C;
+    public static final short CLJ_IDENT_REF             = 0x006D;
+    public static final short STRING_DEF                = 0x006E;
+    public static final short STRING_REF                = 0x006F;
+    public static final short CLJ_SORTED_SET_BY         = 0x0070;
+    public static final short CLJ_SORTED_MAP_BY         = 0x0071;
+    public static final short FRAME                     = 0x0072;
+    public static final short FRAME_REFS                = 0x0073;
+    public static final short INDEX                     = 0x0074;
+    public static final short SYNC                      = 0x0075;
+    public static final short BLOCKS                    = 0x0076;
 }
@@ -1,5 +1,8 @@
 package deed;
 
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
 public record Options(
         long derefTimeoutMs,
         int objectChunkSize,
@@ -8,7 +11,22 @@ public record Options(
         boolean encodeUnsupported,
         boolean ioUseTempFile,
         boolean saveMeta,
-        boolean append
+        boolean append,
+        int bufferSize,
+        short version,
+        ByteOrder arrayByteOrder,
+        boolean keywordRefs,
+        int stringRefs,
+        boolean byteSlices,
+        boolean lazySeqs,
+        boolean ioStreaming,
+        Path ioTempDir,
+        boolean framed,
+        int indexEvery,
+        int syncEvery,
+        boolean asyncWrite,
+        String blockCodec,
+        int blockSize
 ) {
 
     public static Options standard() {
@@ -30,6 +48,21 @@ public record Options(
         private boolean ioUseTempFile = Const.OPT_USE_IO_TEMP_FILE;
         private boolean saveMeta = Const.OPT_SAVE_META;
         private boolean append = Const.OPT_APPEND;
+        private int bufferSize = Const.OPT_BUFFER_SIZE;
+        private short version = Const.HEADER_VERSION;
+        private ByteOrder arrayByteOrder = ByteOrder.BIG_ENDIAN;
+        private boolean keywordRefs = Const.OPT_KEYWORD_REFS;
+        private int stringRefs = Const.OPT_STRING_REFS;
+        private boolean byteSlices = Const.OPT_BYTE_SLICES;
+        private boolean lazySeqs = Const.OPT_LAZY_SEQS;
+        private boolean ioStreaming = Const.OPT_IO_STREAMING;
+        private Path ioTempDir = null;
+        private boolean framed = Const.OPT_FRAMED;
+        private int indexEvery = Const.OPT_INDEX_EVERY;
+        private int syncEvery = Const.OPT_SYNC_EVERY;
+        private boolean asyncWrite = Const.OPT_ASYNC_WRITE;
+        private String blockCodec = null;
+        private int blockSize = Const.OPT_BLOCK_SIZE;
 
         @SuppressWarnings("unused")
         public Builder derefTimeoutMs(final long derefTimeoutMs) {
@@ -79,6 +112,96 @@ public record Options(
             return this;
         }
 
+        @SuppressWarnings("unused")
+        public Builder bufferSize(final int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder version(final short version) {
+            this.version = version;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder arrayByteOrder(final ByteOrder arrayByteOrder) {
+            this.arrayByteOrder = arrayByteOrder;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder keywordRefs(final boolean keywordRefs) {
+            this.keywordRefs = keywordRefs;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder stringRefs(final int stringRefs) {
+            this.stringRefs = stringRefs;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder byteSlices(final boolean byteSlices) {
+            this.byteSlices = byteSlices;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder lazySeqs(final boolean lazySeqs) {
+            this.lazySeqs = lazySeqs;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder ioStreaming(final boolean ioStreaming) {
+            this.ioStreaming = ioStreaming;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder ioTempDir(final Path ioTempDir) {
+            this.ioTempDir = ioTempDir;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder framed(final boolean framed) {
+            this.framed = framed;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder indexEvery(final int indexEvery) {
+            this.indexEvery = indexEvery;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder syncEvery(final int syncEvery) {
+            this.syncEvery = syncEvery;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder asyncWrite(final boolean asyncWrite) {
+            this.asyncWrite = asyncWrite;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder blockCodec(final String blockCodec) {
+            this.blockCodec = blockCodec;
+            return this;
+        }
+
+        @SuppressWarnings("unused")
+        public Builder blockSize(final int blockSize) {
+            this.blockSize = blockSize;
+            return this;
+        }
+
         public Options build() {
             return new Options(
                     derefTimeoutMs,
@@ -88,7 +211,22 @@ public record Options(
                     encodeUnsupported,
                     ioUseTempFile,
                     saveMeta,
-                    append
+                    append,
+                    bufferSize,
+                    version,
+                    arrayByteOrder,
+                    keywordRefs,
+                    stringRefs,
+                    byteSlices,
+                    lazySeqs,
+                    ioStreaming,
+                    ioTempDir,
+                    framed,
+                    indexEvery,
+                    syncEvery,
+                    asyncWrite,
+                    blockCodec,
+                    blockSize
             );
         }
     }
@@ -0,0 +1,16 @@
+package deed;
+
+// A value that still reads its payload from the decoder.
+// It gets drained or skipped once the decoder needs the
+// stream back, and detached when the decoder gets closed.
+interface Pending {
+
+    // Read the rest into memory, so the value stays valid.
+    void drain();
+
+    // Skip the rest in the stream; the value is no longer valid.
+    void skip();
+
+    // Leave the rest in the stream unread; the value is no longer valid.
+    void detach();
+}
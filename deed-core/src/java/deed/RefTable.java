@@ -0,0 +1,39 @@
+package deed;
+
+import java.util.Arrays;
+
+// The decoder side of back references. The encoder assigns ids in
+// order and reuses them when its own table is full, so an id is
+// either a known one or the next free one.
+final class RefTable {
+
+    private final int limit;
+    private Object[] items = null;
+    private int count = 0;
+
+    RefTable(final int limit) {
+        this.limit = limit;
+    }
+
+    void set(final int id, final Object x) {
+        if (id > count || id >= limit) {
+            throw Err.error("wrong back reference id: %s, expected at most %s", id, count);
+        }
+        if (id == count) {
+            if (items == null) {
+                items = new Object[Math.min(64, limit)];
+            } else if (id == items.length) {
+                items = Arrays.copyOf(items, Math.min(items.length * 2, limit));
+            }
+            count++;
+        }
+        items[id] = x;
+    }
+
+    Object get(final int id) {
+        if (id >= count) {
+            throw Err.error("unknown back reference id: %s", id);
+        }
+        return items[id];
+    }
+}
@@ -0,0 +1,41 @@
+package deed;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentMap;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Decoding functions for custom OIDs, indexed by the OID itself.
+// The expand-decode and handle-record macros fill it in; the decoder
+// falls back to the -decode multimethod for the OIDs not found here.
+// Each handler is kept along with the -decode method defined for it,
+// so a method that has been redefined or removed since wins over
+// a stale handler.
+public final class Registry {
+
+    // The method table tells if the method is still the same:
+    // it's a persistent map that changes on every defmethod.
+    public record Entry(IFn method, IFn handler, IPersistentMap table) {}
+
+    private static final AtomicReferenceArray<Entry> HANDLERS = new AtomicReferenceArray<>(0x10000);
+
+    @SuppressWarnings("unused")
+    public static void register(final short oid, final IFn method, final IFn handler) {
+        HANDLERS.set(oid & 0xFFFF, new Entry(method, handler, null));
+    }
+
+    @SuppressWarnings("unused")
+    public static void unregister(final short oid) {
+        HANDLERS.set(oid & 0xFFFF, null);
+    }
+
+    public static Entry get(final short oid) {
+        return HANDLERS.get(oid & 0xFFFF);
+    }
+
+    // Remember that the method is still the one of the entry
+    // as of the given method table.
+    static void confirm(final short oid, final Entry entry, final IPersistentMap table) {
+        HANDLERS.compareAndSet(oid & 0xFFFF, entry, new Entry(entry.method(), entry.handler(), table));
+    }
+}
@@ -0,0 +1,249 @@
+package deed;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.MultiFn;
+import clojure.lang.RT;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+// A file written with the syncEvery option, cut into ranges that start
+// at sync blocks. Each range is mapped into memory and decoded on its
+// own, so the ranges can be reduced in parallel.
+public final class SplitFile implements AutoCloseable {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+    private final Header header;
+    private final byte[] marker;
+
+    private SplitFile(final Path path) {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+        } catch (IOException e) {
+            throw Err.error(e, "could not open a file: %s", path);
+        }
+        try {
+            final ByteBuffer head = read(0, Const.HEADER_SIZE + Const.SYNC_SIZE);
+            if (head.getShort() != OID.HEADER) {
+                throw Err.error("not a deed file: %s", path);
+            }
+            this.header = Header.of(head.getShort(), head.getShort());
+            head.position(Const.HEADER_SIZE);
+            if (head.getShort() != OID.SYNC) {
+                throw Err.error("the file has no sync markers, encode it with the sync-every option: %s", path);
+            }
+            // the OID and the marker are looked up together
+            this.marker = new byte[18];
+            head.position(Const.HEADER_SIZE);
+            head.get(marker);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public static SplitFile open(final Path path) {
+        return new SplitFile(path);
+    }
+
+    @SuppressWarnings("unused")
+    public Header header() {
+        return header;
+    }
+
+    private ByteBuffer read(final long offset, final int len) {
+        final ByteBuffer bb = ByteBuffer.allocate((int) Math.min(len, size - offset));
+        int r;
+        try {
+            while (bb.hasRemaining()) {
+                r = channel.read(bb, offset + bb.position());
+                if (r == -1) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw Err.error(e, "could not read a file, offset: %s, length: %s", offset, len);
+        }
+        return bb.flip();
+    }
+
+    // The offset of the first sync block at or after the given one,
+    // or the size of the file when there is none.
+    public long findSync(final long from) {
+        final int step = 1 << 20;
+        long offset = Math.max(from, Const.HEADER_SIZE);
+        ByteBuffer bb;
+        byte[] chunk;
+        int n;
+        while (offset + marker.length <= size) {
+            bb = read(offset, step + marker.length - 1);
+            chunk = bb.array();
+            n = bb.limit() - marker.length;
+            for (int i = 0; i <= n; i++) {
+                if (chunk[i] == marker[0] && Arrays.equals(chunk, i, i + marker.length, marker, 0, marker.length)) {
+                    return offset + i;
+                }
+            }
+            offset += step;
+        }
+        return size;
+    }
+
+    // Cut points of about the same size, each one at a sync block,
+    // followed by the size of the file.
+    public long[] ranges(final int parts) {
+        final List<Long> points = new ArrayList<>();
+        long last = -1;
+        long point;
+        for (int i = 0; i < parts; i++) {
+            point = findSync(size / parts * i);
+            if (point > last && point < size) {
+                points.add(point);
+                last = point;
+            }
+        }
+        points.add(size);
+        final long[] result = new long[points.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = points.get(i);
+        }
+        return result;
+    }
+
+    public Decoder decoder(final MultiFn mmDecode, final long from, final long to, final Options options) {
+        if (to - from > Integer.MAX_VALUE) {
+            throw Err.error("a range is too large to map: %s bytes, offset: %s", to - from, from);
+        }
+        final ByteBuffer bb;
+        try {
+            bb = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        } catch (IOException e) {
+            throw Err.error(e, "could not map a file, offset: %s, length: %s", from, to - from);
+        }
+        return Decoder.createBlock(mmDecode, bb, header, options);
+    }
+
+    private Object reduceRange(final MultiFn mmDecode,
+                               final Options options,
+                               final long from,
+                               final long to,
+                               final IFn combinef,
+                               final IFn reducef) {
+        Object acc = combinef.invoke();
+        Object x;
+        try (final Decoder d = decoder(mmDecode, from, to, options)) {
+            while (true) {
+                x = d.decode();
+                if (x instanceof EOF) {
+                    break;
+                }
+                acc = reducef.invoke(acc, x);
+                if (RT.isReduced(acc)) {
+                    return ((IDeref) acc).deref();
+                }
+            }
+        }
+        return acc;
+    }
+
+    private int partsFor(final ForkJoinPool pool) {
+        return (int) Math.max(pool.getParallelism() * 4L, size / Const.SPLIT_SIZE + 1);
+    }
+
+    // Reduce every range with reducef starting from (combinef), then
+    // merge the results with combinef in the order of the ranges.
+    public Object fold(final MultiFn mmDecode,
+                       final Options options,
+                       final ForkJoinPool pool,
+                       final IFn combinef,
+                       final IFn reducef) {
+        final long[] points = ranges(partsFor(pool));
+
+        // never serialized, it only runs on the pool
+        @SuppressWarnings("serial")
+        class Fold extends RecursiveTask<Object> {
+            private final int lo;
+            private final int hi;
+
+            Fold(final int lo, final int hi) {
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            @Override
+            protected Object compute() {
+                if (hi - lo == 1) {
+                    return reduceRange(mmDecode, options, points[lo], points[hi], combinef, reducef);
+                }
+                final int mid = (lo + hi) >>> 1;
+                final Fold left = new Fold(lo, mid);
+                left.fork();
+                final Object right = new Fold(mid, hi).compute();
+                return combinef.invoke(left.join(), right);
+            }
+        }
+
+        if (points.length == 1) {
+            return combinef.invoke();
+        }
+        return pool.invoke(new Fold(0, points.length - 1));
+    }
+
+    // Like fold, but the results of the ranges are merged as soon as
+    // they are ready, so combinef must not depend on the order.
+    public Object foldUnordered(final MultiFn mmDecode,
+                                final Options options,
+                                final ForkJoinPool pool,
+                                final IFn combinef,
+                                final IFn reducef) {
+        final long[] points = ranges(partsFor(pool));
+        final ExecutorCompletionService<Object> service = new ExecutorCompletionService<>(pool);
+        final List<Future<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < points.length - 1; i++) {
+            final long from = points[i];
+            final long to = points[i + 1];
+            futures.add(service.submit(() -> reduceRange(mmDecode, options, from, to, combinef, reducef)));
+        }
+        Object acc = combinef.invoke();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                acc = combinef.invoke(acc, service.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Err.error(e, "interrupted while decoding %s", path);
+        } catch (ExecutionException e) {
+            throw Err.error(e.getCause(), "could not decode %s", path);
+        } finally {
+            for (final Future<Object> f: futures) {
+                f.cancel(true);
+            }
+        }
+        return acc;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw Err.error(e, "could not close a file channel");
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package deed;
+
+import java.io.*;
+
+// A buffered stream over a temp file that deletes the file when closed.
+// A file that cannot be deleted right away is deleted on exit.
+public class TempFileInStream extends BufferedInputStream {
+
+    private final File file;
+
+    private TempFileInStream(final File file, final int bufferSize) throws FileNotFoundException {
+        super(new FileInputStream(file), bufferSize);
+        this.file = file;
+    }
+
+    public static TempFileInStream of(final File file, final int bufferSize) {
+        try {
+            return new TempFileInStream(file, bufferSize);
+        } catch (FileNotFoundException e) {
+            throw Err.error(e, "file %s not found", file);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public File file() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
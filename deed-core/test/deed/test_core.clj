@@ -3,7 +3,14 @@
                             ex-message
                             ex-cause])
   (:import
-   (deed Encoder)
+   (deed Encoder
+         Decoder
+         Codec
+         Codecs
+         OID
+         Registry
+         SplitFile)
+   (java.util.concurrent ForkJoinPool)
    (java.math BigInteger
               BigDecimal)
    (java.time LocalDate
@@ -17,6 +24,10 @@
               Period
               ZoneId)
    (java.nio ByteBuffer)
+   (java.nio.channels AsynchronousFileChannel
+                      Channels
+                      FileChannel)
+   (java.nio.file StandardOpenOption)
    (java.sql Time
              Timestamp)
    (java.util.stream Stream)
@@ -30,6 +41,7 @@
               HashMap)
    (java.io IOException
             InputStream
+            OutputStream
             FileOutputStream
             File)
    (java.net URL
@@ -44,7 +56,8 @@
                  BigInt
                  Ratio)
    (java.util.regex Pattern)
-   (java.io ByteArrayOutputStream))
+   (java.io ByteArrayOutputStream
+            ByteArrayInputStream))
   (:require
    [clojure.string :as str]
    [clojure.java.io :as io]
@@ -512,7 +525,8 @@
           b (enc-dec a)]
       (is (= a b))
       (is (= [1 2 3] b))
-      (is (vector? b)))
+      (is (list? b))
+      (is (= 1 (peek b))))
     (let [a (list)
           b (enc-dec a)]
       (is (= a b))
@@ -859,9 +873,55 @@
   (let [file (get-temp-file "test" ".dump")]
     (with-open [e (d/encoder file)]
       (d/encode e 1))
+    (with-open [d (d/decoder file)]
+      (is (= 2 (d/version d))))
+    (with-open [e (d/encoder file {:version 1})]
+      (d/encode e 1))
     (with-open [d (d/decoder file)]
       (is (= 1 (d/version d))))))
 
+
+(deftest test-version-unsupported
+  (let [buf (d/encode-to-bytes 1 {:version 99})]
+    (try
+      (d/decode-from buf)
+      (is false)
+      (catch Exception e
+        (is (= "unsupported version: 99, max supported version: 2"
+               (ex-message e)))))))
+
+
+(def VARINT-DATA
+  {:longs (mapv long [0 1 -1 2 -2 127 128 -129 16383 16384
+           Integer/MAX_VALUE Integer/MIN_VALUE
+           Long/MAX_VALUE Long/MIN_VALUE])
+   :ints (mapv int [2 -2 300 -300 Integer/MAX_VALUE Integer/MIN_VALUE])
+   :shorts (mapv short [2 -2 300 -300 Short/MAX_VALUE Short/MIN_VALUE])
+   :string (str/join (repeat 300 "a"))
+   :vec (vec (range 200))
+   :bytes (vec (byte-array 200))
+   :ex (ex-info "boom" {:id 1})})
+
+
+(deftest test-varint-versions
+  (doseq [version [1 2]]
+    (let [res (enc-dec VARINT-DATA {:version version})]
+      (is (= (:longs VARINT-DATA) (:longs res)))
+      (is (every? Long? (:longs res)))
+      (is (= (:ints VARINT-DATA) (:ints res)))
+      (is (every? Integer? (:ints res)))
+      (is (= (:shorts VARINT-DATA) (:shorts res)))
+      (is (every? Short? (:shorts res)))
+      (is (= (:string VARINT-DATA) (:string res)))
+      (is (= (:vec VARINT-DATA) (:vec res)))
+      (is (= (:bytes VARINT-DATA) (:bytes res)))
+      (is (= {:id 1} (ex-data (:ex res))))))
+
+  (let [data (vec (range 1000))
+        size-1 (alength (d/encode-to-bytes data {:version 1}))
+        size-2 (alength (d/encode-to-bytes data {:version 2}))]
+    (is (< size-2 (/ size-1 2)))))
+
 (deftest test-enc-dec-seq
   (let [file (get-temp-file "test" ".dump")]
     (with-open [e (d/encoder file)]
@@ -1140,7 +1200,7 @@
     (d/encode-to a file)
 
     (let [b (d/decode-from file {:io-temp-file? true})]
-      (is (= "java.io.FileInputStream"
+      (is (= "deed.TempFileInStream"
              (-> b class .getName)))
       (is (= string (slurp b))))))
 
@@ -1252,3 +1312,1052 @@
     (is (instance? ByteBuffer b))
     (is (= 4 (.position b)))
     (is (= 32 (.limit b)))))
+
+
+(deftest test-buffer-size
+  (let [data {:vec (vec (range 1000))
+              :str (str/join (repeat 1000 "abc"))
+              :bytes (byte-array (range 100))}
+        res (enc-dec data {:buffer-size 0xFF})]
+    (is (= (:vec data) (:vec res)))
+    (is (= (:str data) (:str res)))
+    (is (= (vec (:bytes data)) (vec (:bytes res))))))
+
+
+(deftest test-encoder-flush
+  (let [out (new ByteArrayOutputStream)
+        e (d/encoder out)]
+    (d/encode e 42)
+    (is (= 0 (.size out)))
+    (.flush e)
+    (is (= 42 (d/decode-from (.toByteArray out))))
+    (.close e)))
+
+
+(deftest test-decode-truncated
+  (let [buf (d/encode-to-bytes {:foo "hello" :bar [1 2 3]})
+        len (alength buf)]
+
+    (testing "the last value is cut"
+      (try
+        (d/decode-from (java.util.Arrays/copyOf buf (- len 3)))
+        (is false)
+        (catch Exception e
+          (is (str/includes? (ex-message e) "unexpected end of stream")))))
+
+    (testing "an OID is cut"
+      (let [buf2 (d/encode-seq-to-bytes [1 1])]
+        (try
+          (d/decode-seq-from (java.util.Arrays/copyOf buf2 (dec (alength buf2))))
+          (is false)
+          (catch Exception e
+            (is (= "unexpected end of stream: a truncated OID"
+                   (ex-message e)))))))
+
+    (testing "a nested value is missing"
+      (let [buf2 (d/encode-to-bytes [1 1])]
+        (try
+          (d/decode-from (java.util.Arrays/copyOf buf2 (- (alength buf2) 2)))
+          (is false)
+          (catch Exception e
+            (is (= "unexpected end of stream: a nested value is missing"
+                   (ex-message e)))))))))
+
+
+(deftest test-decode-slow-stream
+  (let [data {:vec (vec (range 1000))
+              :str (str/join (repeat 1000 "abc"))
+              :bytes (byte-array (range 100))}
+        buf (d/encode-to-bytes data)
+        in (io/input-stream buf)
+        slow (proxy [InputStream] []
+               (read
+                 ([] (.read in))
+                 ([b off len]
+                  (.read in b off (min len 3)))))
+        res (d/decode-from slow {:buffer-size 0xFF})]
+    (is (= (:vec data) (:vec res)))
+    (is (= (:str data) (:str res)))
+    (is (= (vec (:bytes data)) (vec (:bytes res))))))
+
+
+(deftest test-primitive-arrays-byte-order
+  (doseq [order [nil :big-endian :little-endian :native]
+          version [1 2]]
+    (let [opt {:array-byte-order order
+               :version version
+               :buffer-size 0xFF}
+          n 1000
+          res (enc-dec {:ints (int-array (range n))
+                        :longs (long-array (range n))
+                        :shorts (short-array (range n))
+                        :floats (float-array (range n))
+                        :doubles (double-array (range n))
+                        :chars (char-array (map char (range 32 (+ 32 n))))
+                        :bools (boolean-array (map even? (range n)))}
+                       opt)]
+      (is (= (range n) (vec (:ints res))))
+      (is (= (range n) (vec (:longs res))))
+      (is (= (range n) (vec (:shorts res))))
+      (is (= (map float (range n)) (vec (:floats res))))
+      (is (= (map double (range n)) (vec (:doubles res))))
+      (is (= (map char (range 32 (+ 32 n))) (vec (:chars res))))
+      (is (= (map even? (range n)) (vec (:bools res)))))))
+
+
+(deftest test-array-byte-order-header
+  (let [a (double-array [1.5 2.5])
+        buf-be (d/encode-to-bytes a)
+        buf-le (d/encode-to-bytes a {:array-byte-order :little-endian})]
+    (is (= (alength buf-be) (alength buf-le)))
+    (is (not= (vec buf-be) (vec buf-le)))
+    (is (= [1.5 2.5] (vec (d/decode-from buf-le))))
+    (with-open [d (d/decoder buf-le)]
+      (is (= 1 (.flags (.header d)))))))
+
+
+(deftest test-string-utf8
+  (let [strings ["hello"
+                 "ಬಾ ಇಲ್ಲಿ ಸಂಭವಿಸ"
+                 "Привет, мир"
+                 "emoji 😀 and more 🎉"
+                 "mixed ascii then ÿ"
+                 "\ud800 unpaired \udc00 surrogates \ud800"
+                 (str/join (repeat 1000 "abc"))
+                 (str/join (repeat 1000 "абв😀"))]]
+    (doseq [s strings
+            buffer-size [nil 0xFF]]
+      (let [expected (String. (.getBytes ^String s "UTF-8") "UTF-8")]
+        (is (= expected (enc-dec s {:buffer-size buffer-size})))
+        (is (= (keyword "ns" expected)
+               (enc-dec (keyword "ns" s) {:buffer-size buffer-size})))))))
+
+
+(deftest test-keyword-refs
+  (let [data (vec (for [i (range 1000)]
+                    {:id i
+                     :user/status (rand-nth [:ok :failed])
+                     'sym (keyword (str "kw-" (mod i 300)))
+                     :meta {:tags '[a b c/d]}}))]
+    (doseq [version [1 2]]
+      (let [opts {:version version}
+            plain (d/encode-to-bytes data opts)
+            refs (d/encode-to-bytes data (assoc opts :keyword-refs? true))]
+        (is (= data (d/decode-from plain)))
+        (is (= data (d/decode-from refs)))
+        (is (< (alength refs) (alength plain)))))))
+
+
+(deftest test-keyword-refs-append
+  (let [file (get-temp-file "test" ".deed")]
+    (with-open [out (new FileOutputStream file true)]
+      (d/encode-to [:a :b :a] out {:keyword-refs? true}))
+    (with-open [out (new FileOutputStream file true)]
+      (d/encode-to [:c :c 'd 'd] out {:append? true :keyword-refs? true}))
+    (is (= [[:a :b :a] [:c :c 'd 'd]]
+           (d/decode-seq-from file)))))
+
+
+(deftest test-keyword-refs-unknown
+  (let [out (new ByteArrayOutputStream)]
+    (d/with-encoder [e out]
+      (d/writeOID e OID/CLJ_IDENT_REF)
+      (.writeLength e 3))
+    (is (thrown-with-msg?
+         RuntimeException
+         #"unknown back reference id: 3"
+         (d/decode-from (.toByteArray out))))))
+
+
+(deftest test-keyword-cache
+  (let [kws (vec (for [i (range 10000)]
+                   (keyword "user" (str "k" (mod i 5000)))))
+        syms (vec (for [i (range 10000)]
+                    (symbol "user" (str "s" (mod i 5000)))))
+        long-kw (keyword (str/join (repeat 200 "x")))
+        data [kws syms long-kw long-kw :ಬಾ/ಇಲ್ಲಿ :ಬಾ/ಇಲ್ಲಿ]
+        res (enc-dec data)]
+    (is (= data res))
+    (is (identical? (get-in res [0 1]) (get-in res [0 5001])))
+    (is (identical? :user/k42 (get-in res [0 42])))))
+
+
+(deftest test-string-refs
+  (let [data (vec (for [i (range 1000)]
+                    {:id i
+                     :status (get ["ok" "failed" "pending"] (mod i 3))
+                     :country (str "country-" (mod i 20))
+                     :name (str "user-" i)
+                     :bio (str/join (repeat 100 "x"))}))
+        plain (d/encode-to-bytes data)
+        refs (d/encode-to-bytes data {:string-refs 64})
+        res (d/decode-from refs)]
+    (is (= data res))
+    (is (< (alength refs) (alength plain)))
+    (let [ok (filter #(= "ok" %) (map :status res))]
+      (is (every? #(identical? (first ok) %) ok)))))
+
+
+(deftest test-string-refs-eviction
+  (doseq [size [1 2 3 100]]
+    (let [data (vec (for [i (range 1000)]
+                      (str "s" (mod (* i 7) 13))))]
+      (is (= data (enc-dec data {:string-refs size}))))))
+
+
+(deftest test-custom-oid-registry
+  (is (some? (Registry/get (short MyOID))))
+  (is (some? (Registry/get (short 999))))
+  (is (nil? (Registry/get (short FooBarOID))))
+  (let [a (new AnotherType 1 2 3)
+        ^deed.Registry$Entry entry (Registry/get (short MyOID))
+        method (get-method d/-decode MyOID)
+        restore (fn []
+                  (.addMethod ^clojure.lang.MultiFn d/-decode MyOID method)
+                  (Registry/register (short MyOID) (.method entry) (.handler entry)))]
+
+    (testing "unregistered"
+      (try
+        (Registry/unregister (short MyOID))
+        (is (= [1 2 3]
+               (let [^AnotherType b (enc-dec a)]
+                 [(.-x b) (.-y b) (.-z b)])))
+        (finally
+          (restore))))
+
+    (testing "redefined method"
+      (try
+        (is (instance? AnotherType (enc-dec a)))
+        (defmethod d/-decode MyOID [_ d]
+          [(d/decode d) (d/decode d) (d/decode d)])
+        (is (= [1 2 3] (enc-dec a)))
+        (finally
+          (restore)))
+      (is (instance? AnotherType (enc-dec a))))
+
+    (testing "removed method"
+      (try
+        (remove-method d/-decode MyOID)
+        (is (thrown? Exception (enc-dec a)))
+        (finally
+          (restore)))
+      (is (instance? AnotherType (enc-dec a))))))
+
+
+(deftest test-decode-in-place
+  (let [data {:str (str/join (repeat 1000 "abc"))
+              :bytes (byte-array (range 100))
+              :longs (vec (range 1000))}
+        buf (d/encode-to-bytes data)
+        copy (aclone buf)
+        padded (byte-array (concat [1 2 3] buf [4 5]))]
+
+    (testing "byte array"
+      (is (= (:str data) (:str (d/decode-from buf))))
+      (is (= (vec copy) (vec buf))))
+
+    (testing "offset and length"
+      (with-open [d (Decoder/create d/-decode padded 3 (alength buf) (d/->options nil))]
+        (is (= (:longs data) (:longs (d/decode d))))
+        (is (d/eof? (d/decode d)))))
+
+    (testing "heap byte buffer"
+      (let [bb (-> (ByteBuffer/wrap padded) (.position 3) (.limit (+ 3 (alength buf))))]
+        (is (= (:longs data) (:longs (d/decode-from bb))))
+        (is (= 3 (.position bb)))))
+
+    (testing "direct and read-only buffers"
+      (let [direct (-> (ByteBuffer/allocateDirect (alength buf)) (.put buf) (.flip))
+            read-only (.asReadOnlyBuffer (ByteBuffer/wrap buf))]
+        (doseq [bb [direct read-only]]
+          (let [res (d/decode-from bb {:buffer-size 0xFF})]
+            (is (= (:str data) (:str res)))
+            (is (= (vec (:bytes data)) (vec (:bytes res))))
+            (is (= 0 (.position ^ByteBuffer bb)))))))))
+
+
+(deftest test-byte-slices
+  (let [data [(byte-array (range 100))
+              (ByteBuffer/wrap (byte-array (range 10)))]
+        buf (d/encode-to-bytes data)
+        direct (-> (ByteBuffer/allocateDirect (alength buf)) (.put buf) (.flip))]
+    (doseq [src [buf
+                 direct
+                 (ByteArrayInputStream. buf)]]
+      (let [[^ByteBuffer a ^ByteBuffer b] (d/decode-from src {:byte-slices? true})]
+        (is (.isReadOnly a))
+        (is (.isReadOnly b))
+        (is (= 100 (.remaining a)))
+        (is (= 42 (.get a 42)))
+        (is (= 10 (.remaining b)))
+        (is (= 9 (.get b 9)))))
+    (testing "a slice shares the source array"
+      (let [^ByteBuffer a (first (d/decode-from buf {:byte-slices? true}))]
+        (aset-byte buf (- (alength buf) 20) (byte 99))
+        (is (some #{99} (for [i (range 100)] (.get a (int i)))))))))
+
+
+(deftest test-decode-mmap
+  (let [file (get-temp-file "test" ".deed")
+        items (for [i (range 1000)]
+                {:id i
+                 :name (str "user-" i)
+                 :bytes (byte-array (range (mod i 50)))})]
+    (d/encode-seq-to items file)
+
+    (testing "one window"
+      (is (= (map :name items)
+             (map :name (d/decode-seq-from file {:mmap? true}))))
+      (d/with-decoder [d (str file) {:mmap? true}]
+        (is (= 0 (:id (d/decode d))))))
+
+    (testing "many small windows"
+      (doseq [window [7 64 4096]]
+        (with-open [d (Decoder/createMapped d/-decode
+                                            (.toPath ^File file)
+                                            window
+                                            (d/->options {:byte-slices? true}))]
+          (let [res (vec (d/decode-seq d))]
+            (is (= (map :id items) (map :id res)))
+            (is (= (map (comp vec :bytes) items)
+                   (map (fn [^ByteBuffer bb]
+                          (vec (for [i (range (.remaining bb))]
+                                 (.get bb (int i)))))
+                        (map :bytes res))))))))
+
+    (testing "truncated"
+      (let [file2 (get-temp-file "test" ".deed")]
+        (with-open [out (io/output-stream file2)]
+          (.write out (java.util.Arrays/copyOf (d/encode-to-bytes [1 2 3])
+                                               40)))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"unexpected end of stream"
+             (d/decode-from file2 {:mmap? true})))))))
+
+
+(deftest test-map-sizes
+  (doseq [n [0 1 7 8 9 10 100 1000]]
+    (let [m (into {} (for [i (range n)] [i (str i)]))
+          res (enc-dec m)]
+      (is (= m res))
+      (if (<= n 8)
+        (is (instance? clojure.lang.PersistentArrayMap res))
+        (is (instance? clojure.lang.PersistentHashMap res)))))
+
+  (testing "small map keeps order"
+    (let [m (array-map :z 1 :a 2 :m 3)]
+      (is (= [:z :a :m] (keys (enc-dec m)))))))
+
+
+(deftest test-vector-sizes
+  (doseq [n [0 1 31 32 33 64 1000 100000]]
+    (let [v (vec (range n))
+          res (enc-dec v)]
+      (is (vector? res))
+      (is (= v res))
+      (is (= (conj v :x) (conj res :x)))))
+
+  (testing "list"
+    (let [l (apply list (range 1000))
+          res (enc-dec l)]
+      (is (list? res))
+      (is (= 1000 (count res)))
+      (is (= l res)))))
+
+
+(deftype Desc []
+  java.util.Comparator
+  (compare [_ a b]
+    (compare b a)))
+
+
+(d/expand-encode [6667 Desc e _])
+
+(d/expand-decode [6667 d]
+  (new Desc))
+
+
+(deftest test-sorted-comparator
+  (testing "sorted set"
+    (let [a (into (sorted-set) (range 1000))
+          b (enc-dec a)]
+      (is (= (seq a) (seq b)))
+      (is (= (range 1000) (seq b)))))
+
+  (testing "sorted set by"
+    (let [a (into (sorted-set-by (new Desc)) (range 1000))
+          b (enc-dec a)]
+      (is (instance? Desc (.comparator ^clojure.lang.PersistentTreeSet b)))
+      (is (= (seq a) (seq b)))
+      (is (= 1000 (first (conj b 1000))))))
+
+  (testing "sorted map by"
+    (let [a (into (sorted-map-by (new Desc)) (for [i (range 100)] [i (str i)]))
+          b (enc-dec a)]
+      (is (= (seq a) (seq b)))
+      (is (= 99 (ffirst b))))
+    (let [b (enc-dec (sorted-map-by (new Desc)))]
+      (is (empty? b))
+      (is (= [3 2 1] (keys (assoc b 1 1 3 3 2 2))))))
+
+  (testing "unsupported comparator"
+    (let [b (enc-dec (sorted-set-by > 1 2 3))]
+      (is (= [1 2 3] (seq b)))
+      (is (= clojure.lang.RT/DEFAULT_COMPARATOR
+             (.comparator ^clojure.lang.PersistentTreeSet b))))
+    (let [b (enc-dec (sorted-set-by > 1 2 3) {:encode-unsupported? false})]
+      (is (= [1 2 3] (seq b))))
+    (let [b (enc-dec (sorted-map-by > 1 :a 2 :b) {:encode-unsupported? false})]
+      (is (= {1 :a 2 :b} b))
+      (is (= [1 2] (keys b))))
+    (let [b (enc-dec (sorted-set-by (java.util.Collections/reverseOrder) 1 2 3))]
+      (is (= [1 2 3] (seq b))))))
+
+
+(deftest test-lazy-seqs
+  (let [items (map inc (range 10000))
+        data {:id 1 :rows items :name "test"}]
+
+    (testing "top level"
+      (d/with-decoder [d (d/encode-to-bytes items) {:lazy-seqs? true}]
+        (let [res (d/decode d)]
+          (is (instance? clojure.lang.LazySeq res))
+          (is (not (realized? res)))
+          (is (= (take 10 items) (take 10 res)))
+          (is (= items res))
+          (is (d/eof? (d/decode d))))))
+
+    (testing "nested"
+      (is (= data (d/decode-from (d/encode-to-bytes data) {:lazy-seqs? true})))
+      (d/with-decoder [d (d/encode-to-bytes [data data]) {:lazy-seqs? true}]
+        (is (= [data data] (d/decode d)))))
+
+    (testing "skipped when the decoder moves on"
+      (let [file (get-temp-file "test" ".deed")]
+        (d/encode-seq-to [items (map str items) 42] file)
+        (d/with-decoder [d file {:lazy-seqs? true}]
+          (let [a (d/decode d)
+                _ (is (= (take 10 items) (take 10 a)))
+                b (d/decode d)
+                _ (is (= (take 10 (map str items)) (take 10 b)))
+                c (d/decode d)]
+            (is (= 42 c))
+            (is (thrown-with-msg?
+                 RuntimeException
+                 #"no longer valid"
+                 (dorun a)))
+            (is (thrown-with-msg?
+                 RuntimeException
+                 #"no longer valid"
+                 (dorun b)))))))
+
+    (testing "left unread on close"
+      (let [res (d/with-decoder [d (d/encode-to-bytes items) {:lazy-seqs? true}]
+                  (let [res (d/decode d)]
+                    (is (= (take 10 items) (take 10 res)))
+                    res))]
+        (is (thrown-with-msg?
+             RuntimeException
+             #"no longer valid"
+             (dorun res)))))
+
+    (testing "iterator"
+      (d/with-decoder [d (d/encode-to-bytes (.iterator ^Iterable (vec items)))
+                       {:lazy-seqs? true}]
+        (let [it (d/decode d)]
+          (is (instance? java.util.Iterator it))
+          (is (= items (iterator-seq it))))))
+
+    (testing "off"
+      (is (not (instance? clojure.lang.LazySeq
+                          (d/decode-from (d/encode-to-bytes items))))))
+
+    (testing "truncated"
+      (let [buf (d/encode-to-bytes items)]
+        (d/with-decoder [d (java.util.Arrays/copyOf buf (quot (alength buf) 2))
+                         {:lazy-seqs? true}]
+          (let [res (d/decode d)]
+            (is (= 1 (first res)))
+            (is (thrown-with-msg?
+                 RuntimeException
+                 #"unexpected end of stream"
+                 (dorun res)))))))))
+
+
+(deftest test-io-streaming
+  (let [payload (byte-array (for [i (range 200000)] (unchecked-byte i)))
+        opts {:io-streaming? true}]
+
+    (testing "last value"
+      (let [buf (d/encode-to-bytes {:name "blob"
+                                    :data (ByteArrayInputStream. payload)}
+                                   {:byte-chunk-size 1000})]
+        (d/with-decoder [d buf opts]
+          (let [{:keys [name data]} (d/decode d)
+                out (ByteArrayOutputStream.)]
+            (is (= "blob" name))
+            (is (= 0 (.read ^InputStream data)))
+            (is (= 1 (.read ^InputStream data)))
+            (io/copy data out)
+            (is (= (drop 2 (vec payload)) (vec (.toByteArray out))))
+            (is (= -1 (.read ^InputStream data)))))))
+
+    (testing "skipped when the decoder moves on"
+      (let [file (get-temp-file "test" ".deed")]
+        (d/encode-seq-to [(ByteArrayInputStream. payload) 42] file)
+        (d/with-decoder [d file opts]
+          (let [^InputStream in (d/decode d)]
+            (is (= [0 1 2] [(.read in) (.read in) (.read in)]))
+            (is (= 42 (d/decode d)))
+            (is (thrown-with-msg?
+                 IOException
+                 #"no longer valid"
+                 (.read in)))
+            (is (d/eof? (d/decode d)))))))
+
+    (testing "off"
+      (let [in (d/decode-from (d/encode-to-bytes (ByteArrayInputStream. payload)))]
+        (is (= (vec payload) (vec (.readAllBytes ^InputStream in))))))))
+
+
+(deftest test-io-temp-file
+  (let [payload (byte-array (for [i (range 200000)] (unchecked-byte i)))
+        dir (.toFile (java.nio.file.Files/createTempDirectory
+                      "deed" (make-array java.nio.file.attribute.FileAttribute 0)))
+        buf (d/encode-to-bytes (ByteArrayInputStream. payload)
+                               {:byte-chunk-size 1000})
+        ^deed.TempFileInStream in (d/decode-from buf {:io-temp-file? true
+                                                      :io-temp-dir dir})
+        file (.file in)]
+    (is (= dir (.getParentFile file)))
+    (is (.exists file))
+    (is (= (vec payload) (vec (.readAllBytes in))))
+    (.close in)
+    (is (not (.exists file)))
+
+    (testing "truncated"
+      (is (thrown-with-msg?
+           RuntimeException
+           #"unexpected end of stream"
+           (d/decode-from (java.util.Arrays/copyOf buf (quot (alength buf) 2))
+                          {:io-temp-file? true
+                           :io-temp-dir dir})))
+      (is (empty? (.list dir))))))
+
+
+(deftest test-framed
+  (let [big {:id 1
+             :tags #{:a :b}
+             :rows (vec (for [i (range 10000)] {:i i :s (str "row-" i)}))
+             :sorted (sorted-map 1 2 3 4)
+             :ex (ex-info "boom" {:id 1})}]
+
+    (testing "round trip"
+      (doseq [opts [{:framed? true}
+                    {:framed? true :buffer-size 0xFF}
+                    {:framed? true :keyword-refs? true :string-refs 64}]]
+        (let [res (enc-dec (assoc VARINT-DATA :big big) opts)]
+          (is (= (dissoc VARINT-DATA :ex) (dissoc res :ex :big)))
+          (is (= (dissoc big :ex) (dissoc (:big res) :ex)))
+          (is (= {:id 1} (ex-data (:ex res)))))))
+
+    (testing "frames"
+      (let [buf (d/encode-to-bytes [1 2] {:framed? true})]
+        (is (< (alength (d/encode-to-bytes [1 2]))
+               (alength buf))))
+      (is (= (seq (d/encode-to-bytes (range 10)))
+             (seq (d/encode-to-bytes (range 10) {:framed? true})))))
+
+    (testing "skip"
+      (doseq [opts [nil
+                    {:framed? true}
+                    {:framed? true :keyword-refs? true}
+                    {:framed? true :save-meta? true}]]
+        (let [file (get-temp-file "test" ".deed")]
+          (with-open [e (d/encoder file opts)]
+            (d/encode-seq e [big (with-meta [1 2 3] {:x 1}) {:id 2} 42]))
+          (d/with-decoder [d file]
+            (is (true? (d/skip d)))
+            (is (true? (d/skip d)))
+            (is (= {:id 2} (d/decode d)))
+            (is (true? (d/skip d)))
+            (is (false? (d/skip d)))))))
+
+    (testing "skip truncated"
+      (let [buf (d/encode-to-bytes big {:framed? true})
+            file (get-temp-file "test" ".deed")
+            opts {:buffer-size 1024}]
+        (with-open [out (io/output-stream file)]
+          (.write out buf 0 (quot (alength buf) 2)))
+        (with-open [in (io/input-stream file)
+                    d (d/decoder in opts)]
+          (is (thrown-with-msg?
+               RuntimeException
+               #"unexpected end of stream"
+               (d/skip d))))
+        (with-open [ch (FileChannel/open (.toPath ^File file)
+                                         (into-array [StandardOpenOption/READ]))
+                    d (d/decoder ch opts)]
+          (is (thrown-with-msg?
+               RuntimeException
+               #"unexpected end of stream"
+               (d/skip d))))))))
+
+
+(deftest test-index
+  (let [items (for [i (range 1000)]
+                {:id i :page (quot i 100) :title (str "page " i)})
+        file (get-temp-file "test" ".deed")]
+
+    (doseq [opts [{:index-every 1}
+                  {:index-every 100}
+                  {:index-every 7 :framed? true}
+                  {:index-every 10 :keyword-refs? true :string-refs 16}]]
+      (d/encode-seq-to items file opts)
+
+      (testing "sequential"
+        (is (= items (d/decode-seq-from file))))
+
+      (testing "random access"
+        (doseq [n [0 1 6 7 99 100 101 500 999]]
+          (is (= (nth items n) (d/nth-from file n)))
+          (is (= (nth items n) (d/nth-from (d/encode-seq-to-bytes items opts) n)))))
+
+      (testing "seek and go on"
+        (d/with-decoder [d file {:mmap? true}]
+          (d/seek d 995)
+          (is (= (drop 995 items) (d/decode-seq d)))
+          (d/seek d 3)
+          (is (= 3 (:id (d/decode d))))))
+
+      (testing "out of range"
+        (is (thrown-with-msg?
+             RuntimeException
+             #"item 1000 is out of range, items: 1000"
+             (d/nth-from file 1000)))))
+
+    (testing "many windows"
+      (d/encode-seq-to items file {:index-every 10})
+      (with-open [d (Decoder/createMapped d/-decode
+                                          (.toPath ^File file)
+                                          64
+                                          (d/->options nil))]
+        (d/seek d 777)
+        (is (= 777 (:id (d/decode d))))))
+
+    (testing "no index"
+      (d/encode-seq-to items file)
+      (is (thrown-with-msg?
+           RuntimeException
+           #"the dump has no index"
+           (d/nth-from file 5))))
+
+    (testing "a stream"
+      (d/encode-seq-to items file {:index-every 10})
+      (is (thrown-with-msg?
+           RuntimeException
+           #"cannot seek in a stream"
+           (d/with-decoder [d file]
+             (d/seek d 5)))))))
+
+
+(deftest test-sync-fold
+  (let [items (for [i (range 5000)]
+                {:id i
+                 :event (nth [:open :read :write :close] (mod i 4))
+                 :host (str "host-" (mod i 10))})
+        file (get-temp-file "test" ".deed")
+        combine-vec (fn ([] []) ([a b] (into a b)))
+        sum-ids (fn [acc x] (+ acc (:id x)))]
+
+    (doseq [opts [{:sync-every 1024}
+                  {:sync-every 100 :framed? true}
+                  {:sync-every 4096 :keyword-refs? true :string-refs 4 :index-every 100}]]
+      (d/encode-seq-to items file opts)
+
+      (testing "sequential"
+        (is (= items (d/decode-seq-from file)))
+        (is (= items (d/decode-seq-from file {:mmap? true}))))
+
+      (testing "ordered"
+        (is (= items (d/fold-from file combine-vec conj)))
+        (is (= (reduce + (range 5000)) (d/fold-from file + sum-ids))))
+
+      (testing "unordered"
+        (is (= (reduce + (range 5000))
+               (d/fold-from file + sum-ids {:ordered? false})))
+        (is (= (set items)
+               (set (d/fold-from file combine-vec conj {:ordered? false
+                                                        :pool (ForkJoinPool. 3)}))))))
+
+    (testing "sync blocks"
+      (d/encode-seq-to items file {:sync-every 1024})
+      (with-open [f (SplitFile/open (.toPath ^File file))]
+        (is (= 34 (.findSync f 0)))
+        (let [ranges (vec (.ranges f 8))]
+          (is (= 34 (first ranges)))
+          (is (= (.length ^File file) (peek ranges)))
+          (is (apply < ranges)))))
+
+    (testing "empty"
+      (d/encode-seq-to [] file {:sync-every 1024})
+      (is (= [] (d/fold-from file combine-vec conj))))
+
+    (testing "no sync markers"
+      (d/encode-seq-to items file)
+      (is (thrown-with-msg?
+           RuntimeException
+           #"the file has no sync markers"
+           (d/fold-from file + sum-ids))))))
+
+
+(deftest test-encode-parallel
+  (let [items (for [i (range 5000)]
+                {:id i :batch (quot i 100) :data (range (mod i 50))})
+        file (get-temp-file "test" ".deed")]
+
+    (doseq [opts [nil
+                  {:batch-size 1 :window 1}
+                  {:batch-size 7 :window 3 :pool (ForkJoinPool. 3)}
+                  {:batch-size 1000 :framed? true :buffer-size 256}]]
+      (testing (str opts)
+        (is (= 5000 (d/encode-seq-parallel-to items file opts)))
+        (is (= items (d/decode-seq-from file)))
+        (is (= (.length ^File file)
+               (do (d/encode-seq-to items file opts)
+                   (.length ^File file))))))
+
+    (testing "empty"
+      (is (= 0 (d/encode-seq-parallel-to [] file)))
+      (is (= [] (d/decode-seq-from file))))
+
+    (testing "max items"
+      (is (= 10 (d/encode-seq-parallel-to items file {:uncountable-max-items 10
+                                                      :batch-size 4})))
+      (is (= (take 10 items) (d/decode-seq-from file))))
+
+    (testing "errors"
+      (is (thrown-with-msg?
+           RuntimeException
+           #"could not encode a batch"
+           (d/encode-seq-parallel-to (concat (range 100) [(Object.)])
+                                     file
+                                     {:batch-size 10
+                                      :encode-unsupported? false})))
+      (is (thrown-with-msg?
+           RuntimeException
+           #"keyword and string references cannot be used"
+           (d/encode-seq-parallel-to items file {:keyword-refs? true})))
+      (is (thrown-with-msg?
+           RuntimeException
+           #"an index and sync markers cannot be used"
+           (d/encode-seq-parallel-to items file {:sync-every 1024}))))))
+
+
+(deftest test-async-write
+  (let [items (for [i (range 2000)]
+                {:id i :blob (byte-array (mod i 700))})
+        plain (fn [xs] (map #(update % :blob vec) xs))
+        blob (byte-array 100000 (byte 7))]
+
+    (doseq [opts [{:async-write? true}
+                  {:async-write? true :buffer-size 256}
+                  {:async-write? true :framed? true :sync-every 1000}]]
+      (testing (str opts)
+        (let [out (new ByteArrayOutputStream)]
+          (d/encode-seq-to items out opts)
+          (is (= (count (d/encode-seq-to-bytes items opts))
+                 (count (.toByteArray out))))
+          (is (= (plain items)
+                 (plain (d/decode-seq-from (.toByteArray out))))))))
+
+    (testing "large arrays"
+      (let [out (new ByteArrayOutputStream)]
+        (with-open [e (d/encoder out {:async-write? true :buffer-size 1000})]
+          (d/encode e blob)
+          (aset blob 0 (byte 9))
+          (d/encode e blob))
+        (let [[a b] (d/decode-seq-from (.toByteArray out))]
+          (is (= 7 (first a)))
+          (is (= 9 (first b)))
+          (is (= (vec (rest a)) (vec (rest b)))))))
+
+    (testing "backpressure and flush"
+      (let [written (atom 0)
+            out (proxy [OutputStream] []
+                  (write
+                    ([b] (swap! written inc))
+                    ([^bytes b off len]
+                     (Thread/sleep 5)
+                     (swap! written + len))))]
+        (with-open [e (d/encoder out {:async-write? true :buffer-size 256})]
+          (d/encode-seq e (range 1000))
+          (.flush ^Encoder e)
+          (let [n @written]
+            (is (pos? n))
+            (d/encode e 42)
+            (is (= n @written))))))
+
+    (testing "errors"
+      (let [out (proxy [OutputStream] []
+                  (write
+                    ([b] (throw (IOException. "disk full")))
+                    ([b off len] (throw (IOException. "disk full")))))
+            e (d/encoder out {:async-write? true :buffer-size 256})]
+        ;; large enough to pass through the buffered stream,
+        ;; fails either on the next buffer or on flush
+        (is (thrown-with-msg?
+             RuntimeException
+             #"could not write into the stream"
+             (do (d/encode e blob)
+                 (.flush ^Encoder e))))
+        (is (thrown? RuntimeException (.close ^Encoder e)))))
+
+    (testing "errors stop the encoding"
+      (let [out (proxy [OutputStream] []
+                  (write
+                    ([b] (throw (IOException. "disk full")))
+                    ([b off len] (throw (IOException. "disk full")))))
+            e (d/encoder out {:async-write? true :buffer-size 256})
+            result (future
+                     ;; an endless seq ends with the first failed buffer
+                     [(try (d/encode-seq e (repeat blob)) nil
+                           (catch RuntimeException x (ex-message x)))
+                      (try (.close ^Encoder e) nil
+                           (catch RuntimeException _ :thrown))])]
+        (is (= ["could not write into the stream" :thrown]
+               (deref result 5000 :timeout)))))
+
+    (testing "a stopped thread"
+      (let [writers (fn []
+                      (set (for [^Thread t (keys (Thread/getAllStackTraces))
+                                 :when (= "deed-writer" (.getName t))]
+                             t)))
+            before (writers)
+            e (d/encoder (new ByteArrayOutputStream) {:async-write? true :buffer-size 256})]
+        (doseq [^Thread t (writers) :when (not (before t))]
+          (.interrupt t))
+        (let [result (future
+                       [(try (d/encode-seq e (repeat blob)) nil
+                             (catch RuntimeException _ :thrown))
+                        (try (.close ^Encoder e) nil
+                             (catch RuntimeException _ :thrown))])]
+          (is (= [:thrown :thrown] (deref result 5000 :timeout))))))
+
+    (testing "runtime errors"
+      (let [out (proxy [OutputStream] []
+                  (write
+                    ([b] (throw (IllegalStateException. "not blocking")))
+                    ([b off len] (throw (IllegalStateException. "not blocking")))))
+            e (d/encoder out {:async-write? true :buffer-size 256})
+            result (future
+                     [(try (d/encode e blob)
+                           (d/encode e blob)
+                           (.flush ^Encoder e)
+                           nil
+                           (catch RuntimeException x (ex-message (ex-cause x))))
+                      (try (.close ^Encoder e) nil (catch RuntimeException x :thrown))])]
+        (is (= ["not blocking" :thrown] (deref result 5000 :timeout)))))))
+
+
+(deftest test-channels
+  (let [big (byte-array 200000 (byte 3))
+        direct (doto (ByteBuffer/allocateDirect 100000)
+                 (.put (byte-array 100000 (byte 5)))
+                 (.position 10)
+                 (.limit 90000))
+        items [1 :foo "bar" {:a [1 2 3]} big direct (byte-array 10)]
+        same? (fn [a b]
+                (= (map #(cond (bytes? %) (vec %)
+                               (instance? ByteBuffer %) [(.position ^ByteBuffer %)
+                                                          (.limit ^ByteBuffer %)
+                                                          (.get ^ByteBuffer % 10)]
+                               :else %) a)
+                   (map #(cond (bytes? %) (vec %)
+                               (instance? ByteBuffer %) [(.position ^ByteBuffer %)
+                                                          (.limit ^ByteBuffer %)
+                                                          (.get ^ByteBuffer % 10)]
+                               :else %) b)))
+        file (get-temp-file "test" ".deed")
+        path (.toPath ^File file)]
+
+    (testing "file channel"
+      (with-open [ch (FileChannel/open path (into-array [StandardOpenOption/WRITE
+                                                         StandardOpenOption/TRUNCATE_EXISTING]))]
+        (d/encode-seq-to items ch {:buffer-size 1024}))
+      (is (= [10 90000] [(.position ^ByteBuffer direct) (.limit ^ByteBuffer direct)]))
+      (is (same? items (d/decode-seq-from file)))
+      (with-open [ch (FileChannel/open path (into-array [StandardOpenOption/READ]))]
+        (is (same? items (d/decode-seq-from ch {:buffer-size 1024})))))
+
+    (testing "the same bytes as a stream"
+      (is (= (vec (d/encode-seq-to-bytes items))
+             (vec (java.nio.file.Files/readAllBytes path)))))
+
+    (testing "async file channel"
+      (with-open [ch (AsynchronousFileChannel/open path (into-array [StandardOpenOption/WRITE
+                                                                     StandardOpenOption/TRUNCATE_EXISTING]))]
+        (d/encode-seq-to items ch {:buffer-size 1024}))
+      (with-open [ch (AsynchronousFileChannel/open path (into-array [StandardOpenOption/READ]))]
+        (is (same? items (d/decode-seq-from ch)))))
+
+    (testing "pipe"
+      (let [bytes (d/encode-seq-to-bytes items)
+            ch (Channels/newChannel (ByteArrayInputStream. bytes))]
+        (is (same? items (d/decode-seq-from ch {:buffer-size 1024}))))
+      (let [out (ByteArrayOutputStream.)]
+        (d/encode-seq-to items (Channels/newChannel out) {:async-write? true})
+        (is (same? items (d/decode-seq-from (.toByteArray out))))))
+
+    (testing "skipping"
+      (d/encode-seq-to [big {:a 1}] file {:framed? true})
+      (with-open [ch (FileChannel/open path (into-array [StandardOpenOption/READ]))
+                  dec (d/decoder ch {:buffer-size 1024})]
+        (is (d/skip dec))
+        (is (= {:a 1} (d/decode dec))))
+      (with-open [ch (Channels/newChannel (io/input-stream file))
+                  dec (d/decoder ch {:buffer-size 1024})]
+        (is (d/skip dec))
+        (is (= {:a 1} (d/decode dec)))))))
+
+
+(deftest test-codecs
+  (let [rnd (java.util.Random. 42)
+        random-bytes (fn [n] (let [b (byte-array n)] (.nextBytes rnd b) b))
+        texty-bytes (fn [n] (let [words ["alpha " "beta " "gamma " "delta " "x"]]
+                              (byte-array (take n (cycle (.getBytes ^String (apply str (repeatedly 50 #(nth words (.nextInt rnd (count words)))))))))))]
+    (doseq [codec-name ["lz4" "deflate"]
+            :let [^Codec codec (Codecs/byName codec-name)]
+            n [0 1 5 12 13 14 100 1000 65536 70000 300000]
+            make [random-bytes texty-bytes #(byte-array % (byte 1))]]
+      (let [src (make n)
+            dst (byte-array (+ 3 (.maxCompressedLength codec n)))
+            size (.compress codec src 0 n dst 3)
+            out (byte-array (+ n 2))]
+        (.decompress codec dst 3 size out 1 n)
+        (is (= (vec src) (vec (take n (drop 1 out))))
+            (str codec-name " " n))))
+
+    (testing "the LZ4 block format"
+      (let [^Codec lz4 (Codecs/byName "lz4")
+            block (byte-array [0x1F 97 1 0 1 0x50 97 97 97 97 97])
+            out (byte-array 26)]
+        (.decompress lz4 block 0 (alength block) out 0 26)
+        (is (= (apply str (repeat 26 "a")) (String. out "UTF-8")))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"a corrupted LZ4 block"
+             (.decompress lz4 (byte-array [0x1F 97 5 0 1 0x50 97 97 97 97 97]) 0 11 out 0 26)))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"a corrupted LZ4 block"
+             (.decompress lz4 block 0 (alength block) out 0 20)))))
+
+    (testing "compresses"
+      (let [src (texty-bytes 100000)]
+        (doseq [codec-name ["lz4" "deflate"]
+                :let [^Codec codec (Codecs/byName codec-name)
+                      dst (byte-array (.maxCompressedLength codec 100000))]]
+          (is (< (.compress codec src 0 100000 dst 0) 20000)))))
+
+    (testing "unknown"
+      (is (thrown-with-msg? RuntimeException #"unknown codec: zstd" (Codecs/byName "zstd")))
+      (is (thrown-with-msg? RuntimeException #"unknown codec id: 99" (Codecs/byId 99))))
+
+    (testing "plugged in"
+      (let [plain (fn [id codec-name]
+                    (reify Codec
+                      (id [_] (short id))
+                      (name [_] codec-name)
+                      (maxCompressedLength [_ len] len)
+                      (compress [_ src src-off len dst dst-off]
+                        (System/arraycopy src src-off dst dst-off len)
+                        len)
+                      (decompress [_ src src-off _ dst dst-off dst-len]
+                        (System/arraycopy src src-off dst dst-off dst-len))))]
+        (Codecs/register (plain 0x1001 "test-plain"))
+        (is (= 0x1001 (.id (Codecs/byName "test-plain"))))
+        (is (= "test-plain" (.name (Codecs/byId (short 0x1001)))))
+        (let [file (get-temp-file "test" ".deed")]
+          (d/encode-seq-to (range 100) file {:block-codec "test-plain"})
+          (is (= (range 100) (d/decode-seq-from file))))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"reserved for the built-in codecs"
+             (Codecs/register (plain 7 "test-reserved"))))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"codecs test-plain and test-other have the same id: 4097"
+             (Codecs/register (plain 0x1001 "test-other"))))
+        (is (thrown-with-msg?
+             RuntimeException
+             #"have the same name: lz4"
+             (Codecs/register (plain 0x1002 "lz4"))))
+        (is (= "lz4" (.name (Codecs/byName "lz4"))))
+        (is (thrown-with-msg? RuntimeException #"unknown codec id: 4098" (Codecs/byId (short 0x1002))))))))
+
+
+(deftest test-block-compression
+  (let [items (for [i (range 3000)]
+                {:id i
+                 :level (nth [:info :warn :error] (mod i 3))
+                 :message (str "request " (mod i 10) " done")
+                 :blob (byte-array (mod i 300) (byte (mod i 100)))})
+        plain (fn [xs] (map #(update % :blob vec) xs))
+        file (get-temp-file "test" ".deed")]
+
+    (doseq [opts [{:block-codec :lz4}
+                  {:block-codec "deflate"}
+                  {:block-codec :lz4 :block-size 100}
+                  {:block-codec :lz4 :block-size 100 :framed? true}
+                  {:block-codec :lz4 :async-write? true :buffer-size 1000}]]
+      (testing (str opts)
+        (d/encode-seq-to items file opts)
+        (is (< (.length ^File file) (count (d/encode-seq-to-bytes items))))
+        (is (= (plain items) (plain (d/decode-seq-from file))))
+        (is (= (plain items) (plain (d/decode-seq-from (d/encode-seq-to-bytes items opts)))))
+        (with-open [ch (FileChannel/open (.toPath ^File file) (into-array [StandardOpenOption/READ]))]
+          (is (= (plain items) (plain (d/decode-seq-from ch)))))
+        (with-open [dec (d/decoder file)]
+          (dotimes [_ 2000]
+            (d/skip dec))
+          (is (= (plain (drop 2000 items)) (plain (d/decode-seq dec)))))))
+
+    (testing "incompressible"
+      (let [rnd (java.util.Random. 1)
+            blob (let [b (byte-array 100000)] (.nextBytes rnd b) b)]
+        (d/encode-to blob file {:block-codec :lz4 :block-size 4096})
+        (is (< (.length ^File file) 100300))
+        (is (= (vec blob) (vec (d/decode-from file))))))
+
+    (testing "append"
+      (d/encode-seq-to [1 2] file {:block-codec :lz4})
+      (with-open [out (FileOutputStream. file true)]
+        (d/encode-seq-to [3 4] out {:block-codec :deflate :append? true}))
+      (is (= [1 2 3 4] (d/decode-seq-from file))))
+
+    (testing "empty"
+      (d/encode-seq-to [] file {:block-codec :lz4})
+      (is (= [] (d/decode-seq-from file))))
+
+    (testing "channels"
+      (with-open [ch (FileChannel/open (.toPath ^File file) (into-array [StandardOpenOption/WRITE
+                                                                         StandardOpenOption/TRUNCATE_EXISTING]))]
+        (d/encode-seq-to items ch {:block-codec :lz4}))
+      (is (= (plain items) (plain (d/decode-seq-from file)))))
+
+    (testing "errors"
+      (d/encode-seq-to items file {:block-codec :lz4})
+      (is (thrown-with-msg?
+           RuntimeException
+           #"cannot be mapped"
+           (d/decode-seq-from file {:mmap? true})))
+      (is (thrown-with-msg?
+           RuntimeException
+           #"unknown codec: zstd"
+           (d/encode-seq-to items file {:block-codec :zstd})))
+      (is (thrown-with-msg?
+           RuntimeException
+           #"cannot be used with block compression"
+           (d/encode-seq-to items file {:block-codec :lz4 :index-every 10}))))))